@@ -0,0 +1,17 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+// Runs the benchmarks with the GC profiler attached, so allocation rates are reported next to the timings.
+// Arguments are passed on to JMH, e.g. a benchmark name pattern or -p size=512 to limit the map sizes.
+public class Benchmarks {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .addProfiler(GCProfiler.class)
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,34 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.concurrent.*;
+import com.badlogic.gdx.math.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ControlPointsBenchmark {
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+
+  // control points are allocated per chunk on first use, touch every chunk so the whole map is refreshed
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    Vector3 point = new Vector3();
+    for (int row = 0; row < map.height; row += 10)
+      for (int column = 0; column < map.width; column += 10)
+        map.getControlPoint(row, column, 0, point);
+  }
+
+  @Benchmark
+  public void updateControlPoints() {
+    map.updateControlPoints();
+  }
+}
@@ -0,0 +1,47 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// The per tick work of the simulation on moving units: moving them, publishing a copy and interpolating the two
+// published copies for a frame.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EntityBenchmark {
+  @Param({"1000", "10000", "100000"})
+  public int units;
+
+  private final EntityStore working = new EntityStore(), current = new EntityStore(), previous = new EntityStore();
+  private final EntityStore frame = new EntityStore();
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(Maps.SEED);
+    for (int i = 0; i < units; i++) {
+      int handle = working.create(random.nextInt(4), random.nextInt(2), random.nextFloat() * 1024, 0,
+          random.nextFloat() * 1024, random.nextFloat() * 6.28f, 100);
+      working.speed[working.index(handle)] = 1 + random.nextFloat();
+    }
+    current.set(working);
+  }
+
+  @Benchmark
+  public int tick() {
+    working.move(Simulation.TICK);
+    previous.set(current);
+    current.set(working);
+    return current.size();
+  }
+
+  @Benchmark
+  public int interpolate() {
+    frame.interpolate(previous, current, 0.5f);
+    return frame.size();
+  }
+}
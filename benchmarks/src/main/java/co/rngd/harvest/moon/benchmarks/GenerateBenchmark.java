@@ -0,0 +1,31 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GenerateBenchmark {
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private RandomMap generator;
+
+  @Setup
+  public void setUp() {
+    generator = new RandomMap(null);
+    generator.seed = Maps.SEED;
+    generator.width = size;
+    generator.height = size;
+  }
+
+  @Benchmark
+  public GameMap generate() {
+    return generator.generate();
+  }
+}
@@ -0,0 +1,45 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class InterceptBenchmark {
+  private static final int RAYS = 1024;
+
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+  private final Ray[] rays = new Ray[RAYS];
+  private final GameMap.Pick[] picks = new GameMap.Pick[RAYS];
+
+  // rays from a camera hovering above a random point, looking down at a slant like the gameplay camera does
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    Random random = new Random(Maps.SEED);
+    for (int i = 0; i < RAYS; i++) {
+      float row = random.nextFloat() * map.height, column = random.nextFloat() * map.width;
+      Vector3 origin = new Vector3(row - 20, 25, column - 20);
+      Vector3 target = new Vector3(row, 0, column);
+      rays[i] = new Ray(origin, target.sub(origin).nor());
+      picks[i] = new GameMap.Pick();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RAYS)
+  public int intercept() {
+    return map.intercept(rays, picks, RAYS);
+  }
+}
@@ -0,0 +1,15 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import co.rngd.harvest.moon.*;
+
+class Maps {
+  static final long SEED = 0x5eedL;
+
+  static GameMap generate(int size) {
+    RandomMap generator = new RandomMap(null);
+    generator.seed = SEED;
+    generator.width = size;
+    generator.height = size;
+    return generator.generate();
+  }
+}
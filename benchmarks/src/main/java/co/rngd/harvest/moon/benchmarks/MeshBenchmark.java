@@ -0,0 +1,37 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// Vertex generation of the surface and grid meshes of every chunk, the part of building the terrain that TerrainModel
+// runs off the GL thread. The meshes are reused like TerrainModel does, uploading them needs a GL context.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MeshBenchmark {
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+  private final ChunkMesh surfaceMesh = new ChunkMesh(6);
+  private final ChunkMesh gridMesh = new ChunkMesh(3);
+
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+  }
+
+  @Benchmark
+  public int chunks() {
+    int vertices = 0;
+    for (int chunk = 0; chunk < map.chunkRows() * map.chunkColumns(); chunk++) {
+      map.buildChunkMeshes(chunk, surfaceMesh, gridMesh);
+      vertices += surfaceMesh.vertexCount() + gridMesh.vertexCount();
+    }
+    return vertices;
+  }
+}
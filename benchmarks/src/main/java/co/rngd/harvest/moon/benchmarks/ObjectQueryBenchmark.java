@@ -0,0 +1,87 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import com.badlogic.gdx.utils.IntArray;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// ObjectIndex queries against scanning the object layer cell by cell with getObjectId.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ObjectQueryBenchmark {
+  private static final int CRYSTAL = 2;
+
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+  private final Random random = new Random(Maps.SEED);
+  private final IntArray result = new IntArray();
+
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    // index every chunk up front, queries after that only pay for the chunks they look at
+    map.getObjectIndex().query(0, 0, map.height, map.width, ObjectIndex.ANY, result);
+    map.getObjectIndex().randomFreeFlatCell(random);
+  }
+
+  @Benchmark
+  public int nearestIndexed() {
+    result.clear();
+    map.getObjectIndex().nearest(random.nextInt(map.height), random.nextInt(map.width), CRYSTAL, 1, result);
+    return result.first();
+  }
+
+  @Benchmark
+  public int nearestScan() {
+    int row = random.nextInt(map.height), column = random.nextInt(map.width);
+    int best = -1;
+    long bestDistance = Long.MAX_VALUE;
+    for (int r = 0; r < map.height; r++) {
+      for (int c = 0; c < map.width; c++) {
+        if (map.getObjectId(r, c) != CRYSTAL) continue;
+        long distance = (long) (r - row) * (r - row) + (long) (c - column) * (c - column);
+        if (distance < bestDistance) {
+          bestDistance = distance;
+          best = r * map.width + c;
+        }
+      }
+    }
+    return best;
+  }
+
+  @Benchmark
+  public int radiusIndexed() {
+    result.clear();
+    return map.getObjectIndex().queryRadius(random.nextInt(map.height), random.nextInt(map.width), 20, ObjectIndex.ANY, result);
+  }
+
+  @Benchmark
+  public int radiusScan() {
+    int row = random.nextInt(map.height), column = random.nextInt(map.width), found = 0;
+    for (int r = Math.max(row - 20, 0); r <= Math.min(row + 20, map.height - 1); r++)
+      for (int c = Math.max(column - 20, 0); c <= Math.min(column + 20, map.width - 1); c++)
+        if (map.getObjectId(r, c) != 0 && (r - row) * (r - row) + (c - column) * (c - column) <= 400) found++;
+    return found;
+  }
+
+  @Benchmark
+  public int freeFlatIndexed() {
+    return map.getObjectIndex().randomFreeFlatCell(random);
+  }
+
+  @Benchmark
+  public int freeFlatScan() {
+    result.clear();
+    for (int r = 0; r < map.height; r++)
+      for (int c = 0; c < map.width; c++)
+        if (map.isFlat(r, c) && map.getObjectId(r, c) == 0) result.add(r * map.width + c);
+    return result.get(random.nextInt(result.size));
+  }
+}
@@ -0,0 +1,51 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// Batches of path requests between random free flat cells, so nearly every request misses the path cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PathBenchmark {
+  private static final int BATCH = 64;
+
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+  private PathFinder pathFinder;
+  private final Random random = new Random(Maps.SEED);
+  private final List<PathFinder.Request> requests = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    pathFinder = new PathFinder(map);
+  }
+
+  @Setup(Level.Invocation)
+  public void createRequests() {
+    requests.clear();
+    for (int i = 0; i < BATCH; i++) {
+      int start = map.getObjectIndex().randomFreeFlatCell(random), goal = map.getObjectIndex().randomFreeFlatCell(random);
+      requests.add(new PathFinder.Request(start / map.width, start % map.width, goal / map.width, goal % map.width));
+    }
+  }
+
+  @Benchmark
+  public List<PathFinder.Request> batch() {
+    pathFinder.findPaths(requests);
+    return requests;
+  }
+
+  @Benchmark
+  public int build() {
+    return new PathFinder(map).hashCode();
+  }
+}
@@ -0,0 +1,41 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// Save and load round trips in memory, so the numbers are about encoding and not about the disk.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StoreBenchmark {
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  private GameMap map;
+  private GameplayScreen.State state;
+
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    state = new GameplayScreen.State(map);
+  }
+
+  @Benchmark
+  public GameMap map() throws IOException {
+    BufferOutput output = new BufferOutput();
+    GameMap.Store.writeTo(map, output);
+    return GameMap.Store.readFrom(new BufferInput(output.buffer()));
+  }
+
+  @Benchmark
+  public GameplayScreen.State state() throws IOException {
+    BufferOutput output = new BufferOutput();
+    GameplayScreen.State.Store.writeTo(state, output);
+    return GameplayScreen.State.Store.readFrom(new BufferInput(output.buffer()));
+  }
+}
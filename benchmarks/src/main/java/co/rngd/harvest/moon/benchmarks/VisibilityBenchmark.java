@@ -0,0 +1,56 @@
+package co.rngd.harvest.moon.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import org.openjdk.jmh.annotations.*;
+
+// Visibility updates after a part of the units moved one cell, for two players with UNITS units each.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VisibilityBenchmark {
+  private static final int UNITS = 500, RADIUS = 16;
+
+  @Param({"128", "512", "1024", "2048", "4096"})
+  public int size;
+
+  @Param({"1", "10", "100"})
+  public int movedPercent;
+
+  private GameMap map;
+  private Visibility visibility;
+  private final Random random = new Random(Maps.SEED);
+  private int[] rows, columns;
+  private int step;
+
+  @Setup
+  public void setUp() {
+    map = Maps.generate(size);
+    visibility = new Visibility(map, 2);
+    rows = new int[2 * UNITS];
+    columns = new int[2 * UNITS];
+    for (int unit = 0; unit < rows.length; unit++) {
+      rows[unit] = random.nextInt(size);
+      columns[unit] = random.nextInt(size);
+      visibility.addUnit(unit % 2, rows[unit], columns[unit], RADIUS);
+    }
+    visibility.update();
+  }
+
+  @Benchmark
+  public int update() {
+    int moved = rows.length * movedPercent / 100;
+    for (int i = 0; i < moved; i++) {
+      int unit = (step + i) % rows.length;
+      columns[unit] = (columns[unit] + 1) % size;
+      visibility.moveUnit(unit, rows[unit], columns[unit]);
+    }
+    step += moved;
+    visibility.update();
+    return visibility.getVersion(0);
+  }
+}
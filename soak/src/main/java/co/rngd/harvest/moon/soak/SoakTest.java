@@ -0,0 +1,231 @@
+package co.rngd.harvest.moon.soak;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import co.rngd.harvest.moon.*;
+import com.badlogic.gdx.*;
+import com.badlogic.gdx.backends.headless.*;
+import com.badlogic.gdx.files.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.*;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongArray;
+
+// Runs the game logic without a window on the headless backend: generates a map and then, for a number of
+// iterations, picks, edits terrain and objects, finds paths, updates visibility, ticks the simulation and now and
+// then saves and loads the game. Prints the throughput and latency percentiles of every operation and the peak heap,
+// optionally writes them as JSON lines, and exits with 1 when the 95th percentile of an operation is above its limit.
+// Arguments are key=value: size, iterations, seed, units, saveEvery, report (a file) and max.<operation> in ms.
+public class SoakTest extends ApplicationAdapter {
+  private static class Operation {
+    final String name;
+    final LongArray samples = new LongArray();
+
+    Operation(String name) {
+      this.name = name;
+    }
+
+    long percentile(int percent) {
+      if (samples.size == 0) return 0;
+      return samples.get(Math.min(samples.size - 1, (int) ((long) samples.size * percent / 100)));
+    }
+
+    long total() {
+      long result = 0;
+      for (int i = 0; i < samples.size; i++) result += samples.get(i);
+      return result;
+    }
+  }
+
+  private static final int RAYS = 64, PATHS = 16, TICKS = 10;
+
+  private final Map<String, String> settings;
+  private final Map<String, Operation> operations = new LinkedHashMap<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile int exitCode = 1;
+  private long heapHighWater;
+
+  public static void main(String... args) throws InterruptedException {
+    Map<String, String> settings = new HashMap<>();
+    for (String arg : args) {
+      int split = arg.indexOf('=');
+      if (split < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+      settings.put(arg.substring(0, split), arg.substring(split + 1));
+    }
+    SoakTest test = new SoakTest(settings);
+    HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+    new HeadlessApplication(test, config);
+    test.done.await();
+    System.exit(test.exitCode);
+  }
+
+  public SoakTest(Map<String, String> settings) {
+    this.settings = settings;
+  }
+
+  private int setting(String key, int fallback) {
+    return settings.containsKey(key) ? Integer.parseInt(settings.get(key)) : fallback;
+  }
+
+  private long setting(String key, long fallback) {
+    return settings.containsKey(key) ? Long.parseLong(settings.get(key)) : fallback;
+  }
+
+  @Override
+  public void create() {
+    try {
+      run();
+      exitCode = report() ? 0 : 1;
+    }
+    catch (RuntimeException | IOException e) {
+      Gdx.app.error("SoakTest", "Failed", e);
+    }
+    finally {
+      done.countDown();
+      Gdx.app.exit();
+    }
+  }
+
+  private void run() throws IOException {
+    int size = setting("size", 512), iterations = setting("iterations", 100), units = setting("units", 1000);
+    int saveEvery = setting("saveEvery", 10);
+    long seed = setting("seed", 0x5eedL);
+    Random random = new Random(seed);
+
+    RandomMap generator = new RandomMap(null);
+    generator.seed = seed;
+    generator.width = size;
+    generator.height = size;
+    long start = System.nanoTime();
+    GameMap map = generator.generate();
+    record("generate", start);
+
+    GameplayScreen.State state = new GameplayScreen.State(map);
+    EntityStore entities = state.getEntities();
+    for (int i = 0; i < units; i++) {
+      int handle = entities.create(0, i % 2, random.nextFloat() * size, 0, random.nextFloat() * size,
+          random.nextFloat() * MathUtils.PI2, 100);
+      entities.speed[entities.index(handle)] = 1;
+    }
+    start = System.nanoTime();
+    PathFinder pathFinder = new PathFinder(map);
+    record("pathGraph", start);
+    Visibility visibility = new Visibility(map, 2);
+    int[] viewers = new int[Math.min(units, 200)];
+    for (int i = 0; i < viewers.length; i++) viewers[i] = visibility.addUnit(i % 2, random.nextInt(size), random.nextInt(size), 12);
+
+    Ray[] rays = new Ray[RAYS];
+    GameMap.Pick[] picks = new GameMap.Pick[RAYS];
+    for (int i = 0; i < RAYS; i++) {
+      rays[i] = new Ray();
+      picks[i] = new GameMap.Pick();
+    }
+    IntArray changed = new IntArray(), found = new IntArray();
+    ChunkMesh surface = new ChunkMesh(6), grid = new ChunkMesh(3);
+    List<PathFinder.Request> requests = new ArrayList<>();
+    FileHandle saveFile = new FileHandle(File.createTempFile("soak", ".dat"));
+
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      for (int i = 0; i < RAYS; i++) {
+        rays[i].origin.set(random.nextFloat() * size, 100, random.nextFloat() * size);
+        rays[i].direction.set(random.nextFloat() - 0.5f, -1, random.nextFloat() - 0.5f).nor();
+        start = System.nanoTime();
+        map.intercept(rays[i], picks[i]);
+        record("pick", start);
+      }
+
+      start = System.nanoTime();
+      map.crater(random.nextInt(size), random.nextInt(size), 8 + random.nextInt(8), 4, 3, -2);
+      changed.clear();
+      map.updateDirtyChunks(changed);
+      for (int i = 0; i < changed.size; i++) {
+        surface.clear();
+        grid.clear();
+        map.buildChunkMeshes(changed.get(i), surface, grid);
+      }
+      record("edit", start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < 20; i++) map.setObject(random.nextInt(size), random.nextInt(size), random.nextInt(3));
+      found.clear();
+      map.getObjectIndex().nearest(random.nextInt(size), random.nextInt(size), ObjectIndex.ANY, 8, found);
+      record("objects", start);
+
+      start = System.nanoTime();
+      pathFinder.update();
+      requests.clear();
+      for (int i = 0; i < PATHS; i++)
+        requests.add(new PathFinder.Request(random.nextInt(size), random.nextInt(size), random.nextInt(size), random.nextInt(size)));
+      pathFinder.findPaths(requests);
+      record("paths", start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < viewers.length; i += 4) visibility.moveUnit(viewers[i], random.nextInt(size), random.nextInt(size));
+      visibility.update();
+      record("visibility", start);
+
+      for (int tick = 0; tick < TICKS; tick++) {
+        start = System.nanoTime();
+        state.step(0, Simulation.TICK);
+        record("tick", start);
+      }
+
+      if (saveEvery > 0 && iteration % saveEvery == saveEvery - 1) {
+        start = System.nanoTime();
+        GameplayScreen.State snapshot = state.snapshot();
+        GameplayScreen.State.Store.write(snapshot, saveFile);
+        record("save", start);
+        snapshot.getMap().dispose();
+        start = System.nanoTime();
+        GameplayScreen.State loaded = GameplayScreen.State.Store.read(saveFile);
+        record("load", start);
+        loaded.getMap().dispose();
+      }
+      heapHighWater = Math.max(heapHighWater, Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
+    saveFile.delete();
+  }
+
+  private void record(String name, long start) {
+    long elapsed = System.nanoTime() - start;
+    operations.computeIfAbsent(name, Operation::new).samples.add(elapsed);
+  }
+
+  // prints the results and writes the report, false when an operation is slower than its limit
+  private boolean report() throws IOException {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+    boolean passed = true;
+    StringBuilder lines = new StringBuilder();
+    System.out.printf(Locale.ROOT, "%-12s %8s %12s %10s %10s %10s %10s%n",
+        "operation", "count", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+    for (Operation operation : operations.values()) {
+      operation.samples.sort();
+      long total = operation.total();
+      double throughput = total == 0 ? 0 : operation.samples.size * 1e9 / total;
+      double p50 = operation.percentile(50) / 1e6, p95 = operation.percentile(95) / 1e6, p99 = operation.percentile(99) / 1e6;
+      double max = operation.samples.peek() / 1e6;
+      System.out.printf(Locale.ROOT, "%-12s %8d %12.1f %10.3f %10.3f %10.3f %10.3f%n", operation.name,
+          operation.samples.size, throughput, p50, p95, p99, max);
+      lines.append(String.format(Locale.ROOT,
+          "{\"operation\":\"%s\",\"count\":%d,\"opsPerSecond\":%.1f,\"p50\":%.3f,\"p95\":%.3f,\"p99\":%.3f,\"max\":%.3f}%n",
+          operation.name, operation.samples.size, throughput, p50, p95, p99, max));
+      String limit = settings.get("max." + operation.name);
+      if (limit != null && p95 > Double.parseDouble(limit)) {
+        System.out.printf(Locale.ROOT, "%s: p95 %.3f ms is above the limit of %s ms%n", operation.name, p95, limit);
+        passed = false;
+      }
+    }
+    System.out.printf(Locale.ROOT, "heap high water %d MB (sampled %d MB)%n", peak >> 20, heapHighWater >> 20);
+    lines.append(String.format(Locale.ROOT, "{\"heapPeak\":%d,\"heapSampled\":%d}%n", peak, heapHighWater));
+    if (settings.containsKey("report")) {
+      try (Writer writer = new FileWriter(settings.get("report"))) {
+        writer.write(lines.toString());
+      }
+    }
+    return passed;
+  }
+}
@@ -0,0 +1,121 @@
+package co.rngd.harvest.moon;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import javax.imageio.*;
+
+// Packs the PNG images below some resource directories into a single page texture atlas in the format TextureAtlas
+// reads. The build runs it from source through the java launcher after compiling, so it is not part of the game jar.
+// Regions are named after their path below the resource root without the extension, e.g. icons/pause; images named
+// like walk_3.png become region walk with index 3, so sequences come out of the atlas in order. Images are placed on
+// shelves, tallest first, on the smallest power of two page they fit.
+// Arguments: the output directory, the atlas file name, the resource root and the directories below it to pack.
+public class AtlasPacker {
+  private static final int PADDING = 2, MAX_SIZE = 2048;
+
+  private static class Image {
+    final String name;
+    final int index;
+    final BufferedImage image;
+    int x, y;
+
+    Image(String name, int index, BufferedImage image) {
+      this.name = name;
+      this.index = index;
+      this.image = image;
+    }
+  }
+
+  public static void main(String... args) throws IOException {
+    if (args.length < 4) throw new IllegalArgumentException("Usage: AtlasPacker <output> <atlas> <root> <directory>...");
+    Path output = Paths.get(args[0]), root = Paths.get(args[2]);
+    List<Image> images = new ArrayList<>();
+    for (int i = 3; i < args.length; i++) {
+      List<Path> files;
+      try (Stream<Path> walk = Files.walk(root.resolve(args[i]))) {
+        files = walk.filter(file -> file.toString().endsWith(".png")).sorted().collect(Collectors.toList());
+      }
+      for (Path file : files) images.add(read(root, file));
+    }
+    pack(images, output, args[1]);
+  }
+
+  private static Image read(Path root, Path file) throws IOException {
+    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+    name = name.substring(0, name.length() - ".png".length());
+    int index = -1, split = name.lastIndexOf('_');
+    if (split > name.lastIndexOf('/') && split < name.length() - 1 && name.substring(split + 1).chars().allMatch(Character::isDigit)) {
+      index = Integer.parseInt(name.substring(split + 1));
+      name = name.substring(0, split);
+    }
+    BufferedImage image = ImageIO.read(file.toFile());
+    if (image == null) throw new IOException("Not an image: " + file);
+    return new Image(name, index, image);
+  }
+
+  private static void pack(List<Image> images, Path output, String atlasName) throws IOException {
+    images.sort(Comparator.comparingInt((Image image) -> -image.image.getHeight()).thenComparing(image -> image.name));
+    int size = 64;
+    while (!place(images, size)) {
+      size *= 2;
+      if (size > MAX_SIZE) throw new IllegalStateException("Images do not fit on a " + MAX_SIZE + " page");
+    }
+
+    BufferedImage page = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    for (Image image : images) draw(page, image);
+    String pageName = atlasName.replaceFirst("\\.atlas$", "") + ".png";
+    Files.createDirectories(output);
+    ImageIO.write(page, "png", output.resolve(pageName).toFile());
+
+    StringBuilder atlas = new StringBuilder();
+    atlas.append('\n').append(pageName).append('\n');
+    atlas.append("size: ").append(size).append(',').append(size).append('\n');
+    atlas.append("format: RGBA8888\nfilter: Nearest,Nearest\nrepeat: none\n");
+    images.sort(Comparator.comparing((Image image) -> image.name).thenComparingInt(image -> image.index));
+    for (Image image : images) {
+      int width = image.image.getWidth(), height = image.image.getHeight();
+      atlas.append(image.name).append('\n');
+      atlas.append("  rotate: false\n");
+      atlas.append("  xy: ").append(image.x).append(", ").append(image.y).append('\n');
+      atlas.append("  size: ").append(width).append(", ").append(height).append('\n');
+      atlas.append("  orig: ").append(width).append(", ").append(height).append('\n');
+      atlas.append("  offset: 0, 0\n");
+      atlas.append("  index: ").append(image.index).append('\n');
+    }
+    Files.write(output.resolve(atlasName), atlas.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // shelves from the top left, every image keeps PADDING pixels to the next one and the page edge
+  private static boolean place(List<Image> images, int size) {
+    int x = PADDING, y = PADDING, shelf = 0;
+    for (Image image : images) {
+      int width = image.image.getWidth(), height = image.image.getHeight();
+      if (x + width + PADDING > size) {
+        x = PADDING;
+        y += shelf + PADDING;
+        shelf = 0;
+      }
+      if (x + width + PADDING > size || y + height + PADDING > size) return false;
+      image.x = x;
+      image.y = y;
+      x += width + PADDING;
+      shelf = Math.max(shelf, height);
+    }
+    return true;
+  }
+
+  // the edge pixels are repeated into the padding, so filtering at the border of a region does not pick up its
+  // neighbours
+  private static void draw(BufferedImage page, Image image) {
+    int width = image.image.getWidth(), height = image.image.getHeight();
+    for (int y = -PADDING / 2; y < height + PADDING / 2; y++)
+      for (int x = -PADDING / 2; x < width + PADDING / 2; x++) {
+        int sx = Math.max(0, Math.min(width - 1, x)), sy = Math.max(0, Math.min(height - 1, y));
+        page.setRGB(image.x + x, image.y + y, image.image.getRGB(sx, sy));
+      }
+  }
+}
@@ -0,0 +1,38 @@
+package co.rngd.harvest.moon;
+
+public class ArrayMapStorage implements MapStorage {
+  private final int width, height;
+  private final int[] heightMap;
+  private final int[] objectMap;
+
+  public ArrayMapStorage(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.heightMap = new int[(width + 1) * (height + 1)];
+    this.objectMap = new int[width * height];
+  }
+
+  private ArrayMapStorage(ArrayMapStorage source) {
+    this.width = source.width;
+    this.height = source.height;
+    this.heightMap = source.heightMap.clone();
+    this.objectMap = source.objectMap.clone();
+  }
+
+  @Override public MapStorage copy() { return new ArrayMapStorage(this); }
+
+  @Override public int width() { return width; }
+  @Override public int height() { return height; }
+
+  @Override public int getHeight(int row, int column) { return heightMap[row * (width + 1) + column]; }
+  @Override public void setHeight(int row, int column, int value) { heightMap[row * (width + 1) + column] = value; }
+
+  @Override public int getObject(int row, int column) { return objectMap[row * width + column]; }
+  @Override public void setObject(int row, int column, int value) { objectMap[row * width + column] = value; }
+
+  @Override public void getHeights(int row, int[] values) { System.arraycopy(heightMap, row * (width + 1), values, 0, width + 1); }
+  @Override public void setHeights(int row, int[] values) { System.arraycopy(values, 0, heightMap, row * (width + 1), width + 1); }
+  @Override public void getObjects(int row, int[] values) { System.arraycopy(objectMap, row * width, values, 0, width); }
+  @Override public void getObjects(int row, int from, int to, int[] values) { System.arraycopy(objectMap, row * width + from, values, 0, to - from); }
+  @Override public void setObjects(int row, int[] values) { System.arraycopy(values, 0, objectMap, row * width, width); }
+}
@@ -0,0 +1,59 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import com.badlogic.gdx.assets.*;
+import com.badlogic.gdx.files.*;
+import com.badlogic.gdx.graphics.g3d.*;
+
+// Assets to load before a screen starts, read from a text file with one asset per line: its type, atlas, texture or
+// model, and its path. Empty lines and lines starting with # are skipped. Atlases and textures go through the texture
+// cache, so names resolve through the atlases and textures are reference counted with the other users of the cache.
+public class AssetManifest {
+  public static class Entry {
+    public final String type, path;
+
+    public Entry(String type, String path) {
+      this.type = type;
+      this.path = path;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  public static AssetManifest read(FileHandle file) {
+    AssetManifest result = new AssetManifest();
+    for (String line : file.readString("UTF-8").split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] parts = line.split("\\s+");
+      if (parts.length != 2) throw new IllegalArgumentException("Bad manifest line: " + line);
+      result.add(parts[0], parts[1]);
+    }
+    return result;
+  }
+
+  public void add(String type, String path) {
+    if (!type.equals("atlas") && !type.equals("texture") && !type.equals("model")) throw new IllegalArgumentException("Bad asset type: " + type);
+    entries.add(new Entry(type, path));
+  }
+
+  public List<Entry> getEntries() { return entries; }
+
+  // starts loading every asset, the asset manager finishes them over the next updates
+  public void queue(AssetManager assetManager, TextureCache textureCache) {
+    for (Entry entry : entries) {
+      if (entry.type.equals("atlas")) textureCache.addAtlas(entry.path);
+      else if (entry.type.equals("texture")) textureCache.acquire(entry.path);
+      else assetManager.load(entry.path, Model.class);
+    }
+  }
+
+  // atlases stay until the texture cache is disposed
+  public void release(AssetManager assetManager, TextureCache textureCache) {
+    for (Entry entry : entries) {
+      if (entry.type.equals("atlas")) continue;
+      if (entry.type.equals("texture")) textureCache.release(entry.path);
+      else assetManager.unload(entry.path);
+    }
+  }
+}
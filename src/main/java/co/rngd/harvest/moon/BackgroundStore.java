@@ -0,0 +1,60 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import com.badlogic.gdx.files.*;
+import com.badlogic.gdx.utils.*;
+
+// Runs the reads and writes of a data store on a worker thread. Writes go to a temporary file next to the target
+// which then replaces it, so a crash halfway through a save never leaves a truncated file behind.
+public class BackgroundStore<T> implements Disposable {
+  private final DataStore<T> store;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "background-store");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public BackgroundStore(DataStore<T> store) {
+    this.store = store;
+  }
+
+  // value must not change anymore once handed over, pass a snapshot
+  public CompletableFuture<Void> write(T value, FileHandle target) {
+    return CompletableFuture.runAsync(() -> {
+      FileHandle temporary = target.sibling(target.name() + ".tmp");
+      store.write(value, temporary);
+      try {
+        replace(temporary.file().toPath(), target.file().toPath());
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to replace " + target, e);
+      }
+    }, executor);
+  }
+
+  public CompletableFuture<T> read(FileHandle source) {
+    return CompletableFuture.supplyAsync(() -> store.read(source), executor);
+  }
+
+  private static void replace(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
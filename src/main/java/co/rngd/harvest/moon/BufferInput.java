@@ -0,0 +1,58 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.nio.*;
+
+// DataInput over a byte buffer, so stores can bulk-read what they need straight from the buffer.
+public class BufferInput implements DataInput {
+  private final ByteBuffer buffer;
+
+  public BufferInput(ByteBuffer buffer) {
+    this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+  }
+
+  public ByteBuffer buffer() { return buffer; }
+
+  private ByteBuffer need(int count) throws IOException {
+    if (buffer.remaining() < count) throw new EOFException();
+    return buffer;
+  }
+
+  @Override public void readFully(byte[] b) throws IOException { readFully(b, 0, b.length); }
+  @Override public void readFully(byte[] b, int off, int len) throws IOException { need(len).get(b, off, len); }
+
+  @Override
+  public int skipBytes(int n) {
+    int count = Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  @Override public boolean readBoolean() throws IOException { return need(1).get() != 0; }
+  @Override public byte readByte() throws IOException { return need(1).get(); }
+  @Override public int readUnsignedByte() throws IOException { return need(1).get() & 0xff; }
+  @Override public short readShort() throws IOException { return need(2).getShort(); }
+  @Override public int readUnsignedShort() throws IOException { return need(2).getShort() & 0xffff; }
+  @Override public char readChar() throws IOException { return need(2).getChar(); }
+  @Override public int readInt() throws IOException { return need(4).getInt(); }
+  @Override public long readLong() throws IOException { return need(8).getLong(); }
+  @Override public float readFloat() throws IOException { return need(4).getFloat(); }
+  @Override public double readDouble() throws IOException { return need(8).getDouble(); }
+  @Override public String readUTF() throws IOException { return DataInputStream.readUTF(this); }
+
+  @Override
+  public String readLine() throws IOException {
+    if (!buffer.hasRemaining()) return null;
+    StringBuilder result = new StringBuilder();
+    while (buffer.hasRemaining()) {
+      char c = (char) (buffer.get() & 0xff);
+      if (c == '\n') break;
+      if (c == '\r') {
+        if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') buffer.get();
+        break;
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,65 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.nio.*;
+
+// DataOutput into a growing heap byte buffer, written out in one go once the store is done.
+public class BufferOutput implements DataOutput {
+  private ByteBuffer buffer;
+
+  public BufferOutput() { this(64 * 1024); }
+
+  public BufferOutput(int capacity) {
+    buffer = ByteBuffer.allocate(capacity);
+  }
+
+  // the written bytes, flipped for reading
+  public ByteBuffer buffer() {
+    ByteBuffer result = buffer.duplicate();
+    result.flip();
+    return result;
+  }
+
+  private ByteBuffer ensure(int count) {
+    if (buffer.remaining() < count) {
+      long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + count);
+      if (capacity > Integer.MAX_VALUE - 8) throw new IllegalStateException("Buffer too large: " + capacity);
+      ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+    return buffer;
+  }
+
+  @Override public void write(int b) { ensure(1).put((byte) b); }
+  @Override public void write(byte[] b) { write(b, 0, b.length); }
+  @Override public void write(byte[] b, int off, int len) { ensure(len).put(b, off, len); }
+  @Override public void writeBoolean(boolean v) { ensure(1).put((byte) (v ? 1 : 0)); }
+  @Override public void writeByte(int v) { ensure(1).put((byte) v); }
+  @Override public void writeShort(int v) { ensure(2).putShort((short) v); }
+  @Override public void writeChar(int v) { ensure(2).putChar((char) v); }
+  @Override public void writeInt(int v) { ensure(4).putInt(v); }
+  @Override public void writeLong(long v) { ensure(8).putLong(v); }
+  @Override public void writeFloat(float v) { ensure(4).putFloat(v); }
+  @Override public void writeDouble(double v) { ensure(8).putDouble(v); }
+
+  @Override
+  public void writeBytes(String s) {
+    ByteBuffer target = ensure(s.length());
+    for (int i = 0; i < s.length(); i++) target.put((byte) s.charAt(i));
+  }
+
+  @Override
+  public void writeChars(String s) {
+    ByteBuffer target = ensure(2 * s.length());
+    for (int i = 0; i < s.length(); i++) target.putChar(s.charAt(i));
+  }
+
+  @Override
+  public void writeUTF(String s) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+    new DataOutputStream(bytes).writeUTF(s);
+    write(bytes.toByteArray());
+  }
+}
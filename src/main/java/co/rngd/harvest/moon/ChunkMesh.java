@@ -0,0 +1,98 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import com.badlogic.gdx.graphics.*;
+import com.badlogic.gdx.math.collision.*;
+
+// Vertex and index data of one chunk, written straight into arrays so it can be generated on any thread; only
+// toMesh needs the GL thread. The arrays grow as needed and are kept by clear, so a mesh can be reused.
+public class ChunkMesh {
+  private final int stride;
+  private float[] vertices;
+  private short[] indices;
+  private int vertexCount, indexCount;
+  private float minX, minY, minZ, maxX, maxY, maxZ;
+  // scratch space of whoever builds the mesh, kept with it so building a pooled mesh allocates nothing
+  private boolean[] marks = new boolean[0];
+
+  // stride is the number of floats per vertex
+  public ChunkMesh(int stride) {
+    this.stride = stride;
+    this.vertices = new float[1024 * stride];
+    this.indices = new short[1536];
+    clear();
+  }
+
+  public void clear() {
+    vertexCount = 0;
+    indexCount = 0;
+    minX = minY = minZ = Float.POSITIVE_INFINITY;
+    maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+  }
+
+  public int vertexCount() { return vertexCount; }
+  public int indexCount() { return indexCount; }
+  public float[] vertices() { return vertices; }
+  public short[] indices() { return indices; }
+
+  // size flags, all false
+  public boolean[] marks(int size) {
+    if (marks.length < size) marks = new boolean[size];
+    else Arrays.fill(marks, 0, size, false);
+    return marks;
+  }
+
+  public BoundingBox getBounds(BoundingBox out) {
+    if (vertexCount == 0) return out.inf();
+    return out.set(out.min.set(minX, minY, minZ), out.max.set(maxX, maxY, maxZ));
+  }
+
+  public short vertex(float x, float y, float z) {
+    int offset = addVertex(x, y, z);
+    return (short) (offset / stride);
+  }
+
+  public short vertex(float x, float y, float z, float nx, float ny, float nz) {
+    int offset = addVertex(x, y, z);
+    vertices[offset + 3] = nx;
+    vertices[offset + 4] = ny;
+    vertices[offset + 5] = nz;
+    return (short) (offset / stride);
+  }
+
+  private int addVertex(float x, float y, float z) {
+    int offset = vertexCount * stride;
+    if (offset + stride > vertices.length) vertices = Arrays.copyOf(vertices, vertices.length * 2);
+    vertices[offset] = x;
+    vertices[offset + 1] = y;
+    vertices[offset + 2] = z;
+    if (x < minX) minX = x;
+    if (y < minY) minY = y;
+    if (z < minZ) minZ = z;
+    if (x > maxX) maxX = x;
+    if (y > maxY) maxY = y;
+    if (z > maxZ) maxZ = z;
+    vertexCount++;
+    return offset;
+  }
+
+  public void line(short a, short b) {
+    if (indexCount + 2 > indices.length) indices = Arrays.copyOf(indices, indices.length * 2);
+    indices[indexCount++] = a;
+    indices[indexCount++] = b;
+  }
+
+  public void triangle(short a, short b, short c) {
+    if (indexCount + 3 > indices.length) indices = Arrays.copyOf(indices, indices.length * 2);
+    indices[indexCount++] = a;
+    indices[indexCount++] = b;
+    indices[indexCount++] = c;
+  }
+
+  public Mesh toMesh(VertexAttributes attributes) {
+    Mesh mesh = new Mesh(true, vertexCount, indexCount, attributes);
+    mesh.setVertices(vertices, 0, vertexCount * stride);
+    mesh.setIndices(indices, 0, indexCount);
+    return mesh;
+  }
+}
@@ -1,6 +1,10 @@
 package co.rngd.harvest.moon;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import com.badlogic.gdx.Files.FileType;
 import com.badlogic.gdx.files.*;
 
 public interface DataStore<T> {
@@ -11,10 +15,24 @@ public interface DataStore<T> {
     throw new IOException(message);
   }
 
+  // files on disk are read in one go and decoded from a BufferInput, resources that may live in a jar are streamed;
+  // the file is not mapped so it is not kept locked for a later save
   default T read(FileHandle source) {
-    try(InputStream is = source.read();
-        DataInputStream input = new DataInputStream(is)) {
-      return readFrom(input);
+    try {
+      if (!isOnDisk(source)) {
+        try(InputStream is = source.read();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(is))) {
+          return readFrom(input);
+        }
+      }
+      ByteBuffer bytes;
+      try(FileChannel channel = FileChannel.open(source.file().toPath(), StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) fail("File too large");
+        bytes = ByteBuffer.allocate((int) channel.size());
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0) { }
+      }
+      bytes.flip();
+      return readFrom(new BufferInput(bytes));
     }
     catch (IOException e) {
       throw new IllegalStateException("Failed to read from " + source, e);
@@ -22,12 +40,29 @@ public interface DataStore<T> {
   }
 
   default void write(T value, FileHandle target) {
-    try(OutputStream os = target.write(false);
-        DataOutputStream output = new DataOutputStream(os)) {
+    try {
+      if (!isOnDisk(target)) {
+        try(OutputStream os = target.write(false);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(os))) {
+          writeTo(value, output);
+        }
+        return;
+      }
+      BufferOutput output = new BufferOutput();
       writeTo(value, output);
+      target.parent().mkdirs();
+      try(FileChannel channel = FileChannel.open(target.file().toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer bytes = output.buffer();
+        while (bytes.hasRemaining()) channel.write(bytes);
+      }
     }
     catch (IOException e) {
       throw new IllegalStateException("Failed to write to " + target, e);
     }
   }
+
+  private static boolean isOnDisk(FileHandle file) {
+    return file.type() == FileType.External || file.type() == FileType.Absolute || file.type() == FileType.Local;
+  }
 }
@@ -0,0 +1,59 @@
+package co.rngd.harvest.moon;
+
+import com.badlogic.gdx.graphics.g3d.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.*;
+import com.badlogic.gdx.utils.*;
+
+// Model instances for the entities of a store, taken from a pool per entity type and reused frame after frame, so
+// drawing entities allocates nothing once the pools are large enough. update writes the transforms of the entities
+// inside the frustum into instances and lists those for rendering; types without a model are not drawn.
+public class EntityInstances {
+  private final Array<Model> models = new Array<>();
+  private final FloatArray radii = new FloatArray();
+  private final Array<Array<ModelInstance>> pools = new Array<>();
+  private final IntArray used = new IntArray();
+  private final Array<ModelInstance> visible = new Array<>();
+  private final BoundingBox bounds = new BoundingBox();
+
+  // the model is not owned, dispose it elsewhere
+  public void setModel(int type, Model model) {
+    while (models.size <= type) {
+      models.add(null);
+      radii.add(0);
+      pools.add(new Array<>());
+      used.add(0);
+    }
+    models.set(type, model);
+    radii.set(type, model == null ? 0 : model.calculateBoundingBox(bounds).getDimensions(new Vector3()).len() / 2);
+    pools.get(type).clear();
+  }
+
+  // the instances of the visible entities, valid until the next update; frustum null draws every entity
+  public Array<ModelInstance> update(EntityStore store, Frustum frustum) {
+    visible.clear();
+    for (int type = 0; type < used.size; type++) used.set(type, 0);
+    float[] x = store.x, y = store.y, z = store.z, heading = store.heading;
+    int[] types = store.type;
+    for (int i = 0; i < store.size(); i++) {
+      int type = types[i];
+      if (type < 0 || type >= models.size || models.get(type) == null) continue;
+      if (frustum != null && !frustum.sphereInFrustum(x[i], y[i], z[i], radii.get(type))) continue;
+      ModelInstance instance = instance(type);
+      // heading turns +x towards +z, which is a negative rotation around +y
+      instance.transform.setToRotationRad(Vector3.Y, -heading[i]).setTranslation(x[i], y[i], z[i]);
+      visible.add(instance);
+    }
+    return visible;
+  }
+
+  private ModelInstance instance(int type) {
+    Array<ModelInstance> pool = pools.get(type);
+    int index = used.get(type);
+    used.set(type, index + 1);
+    if (index == pool.size) pool.add(new ModelInstance(models.get(type)));
+    return pool.get(index);
+  }
+
+  public Array<ModelInstance> getVisible() { return visible; }
+}
@@ -0,0 +1,222 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.util.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.utils.IntArray;
+
+// Units kept as parallel columns: entity i is x[i], y[i], z[i], heading[i] and so on, for i below size(). Systems
+// loop over the columns directly; removing an entity moves the last one into its place, so the columns stay dense.
+// The columns are replaced when the store grows, read them from the store again after create.
+// Handles stay valid while their entity lives: the low bits are a slot that maps to the current index, the high
+// bits count how often the slot was reused, so the handle of a removed entity is recognized as stale.
+public class EntityStore {
+  public static final int NONE = -1;
+
+  private static final int SLOT_BITS = 22, SLOT_MASK = (1 << SLOT_BITS) - 1, GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+  public static final DataStore<EntityStore> Store = new DataStore<EntityStore>() {
+    private static final int VERSION = 1;
+
+    @Override
+    public void writeTo(EntityStore store, DataOutput output) throws IOException {
+      output.writeInt(VERSION);
+      output.writeInt(store.size);
+      for (int i = 0; i < store.size; i++) {
+        output.writeFloat(store.x[i]);
+        output.writeFloat(store.y[i]);
+        output.writeFloat(store.z[i]);
+        output.writeFloat(store.heading[i]);
+        output.writeFloat(store.speed[i]);
+        output.writeInt(store.type[i]);
+        output.writeInt(store.owner[i]);
+        output.writeInt(store.health[i]);
+      }
+    }
+
+    // handles are not saved, entities get new ones in the same order
+    @Override
+    public EntityStore readFrom(DataInput input) throws IOException {
+      if (input.readInt() != VERSION) fail("EntityStore version mismatch");
+      int size = input.readInt();
+      if (size < 0 || size > SLOT_MASK) fail("EntityStore size out of range");
+      EntityStore result = new EntityStore();
+      for (int i = 0; i < size; i++) {
+        float x = input.readFloat(), y = input.readFloat(), z = input.readFloat(), heading = input.readFloat();
+        float speed = input.readFloat();
+        int type = input.readInt(), owner = input.readInt(), health = input.readInt();
+        int index = result.index(result.create(type, owner, x, y, z, heading, health));
+        result.speed[index] = speed;
+      }
+      return result;
+    }
+  };
+
+  public float[] x, y, z;
+  // radians around the up axis, 0 looks along +x; speed is in cells per second along the heading
+  public float[] heading, speed;
+  public int[] type, owner, health;
+  private int size;
+  // handle of each index, and for each of the first slots slots its index and generation; the arrays may be longer
+  private int[] handles;
+  private int[] indices = new int[0], generations = new int[0];
+  private int slots;
+  private final IntArray freeSlots = new IntArray();
+
+  public EntityStore() {
+    this(64);
+  }
+
+  public EntityStore(int capacity) {
+    allocate(Math.max(capacity, 1));
+  }
+
+  public int size() { return size; }
+
+  public int create(int type, int owner, float x, float y, float z, float heading, int health) {
+    if (size == this.x.length) grow(size * 2);
+    int slot;
+    if (freeSlots.notEmpty()) slot = freeSlots.pop();
+    else {
+      slot = slots;
+      if (slot > SLOT_MASK) throw new IllegalStateException("Too many entities");
+      slots = Math.min(Math.max(slot * 2, 64), SLOT_MASK + 1);
+      if (indices.length < slots) {
+        indices = Arrays.copyOf(indices, slots);
+        generations = Arrays.copyOf(generations, slots);
+      }
+      Arrays.fill(generations, slot, slots, 0);
+      for (int free = slots - 1; free > slot; free--) freeSlots.add(free);
+    }
+    int index = size++;
+    indices[slot] = index;
+    handles[index] = generations[slot] << SLOT_BITS | slot;
+    this.x[index] = x;
+    this.y[index] = y;
+    this.z[index] = z;
+    this.heading[index] = heading;
+    this.speed[index] = 0;
+    this.type[index] = type;
+    this.owner[index] = owner;
+    this.health[index] = health;
+    return handles[index];
+  }
+
+  public void remove(int handle) {
+    int index = index(handle);
+    if (index < 0) throw new IllegalArgumentException("Stale entity handle: " + handle);
+    int slot = handle & SLOT_MASK, last = --size;
+    if (index != last) {
+      x[index] = x[last];
+      y[index] = y[last];
+      z[index] = z[last];
+      heading[index] = heading[last];
+      speed[index] = speed[last];
+      type[index] = type[last];
+      owner[index] = owner[last];
+      health[index] = health[last];
+      handles[index] = handles[last];
+      indices[handles[index] & SLOT_MASK] = index;
+    }
+    generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+    indices[slot] = NONE;
+    freeSlots.add(slot);
+  }
+
+  // the index of the entity in the columns, NONE if the handle is stale
+  public int index(int handle) {
+    int slot = handle & SLOT_MASK;
+    if (handle < 0 || slot >= slots || generations[slot] != handle >>> SLOT_BITS) return NONE;
+    return indices[slot];
+  }
+
+  public boolean contains(int handle) { return index(handle) != NONE; }
+
+  public int handle(int index) { return handles[index]; }
+
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      int slot = handles[i] & SLOT_MASK;
+      generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+      indices[slot] = NONE;
+      freeSlots.add(slot);
+    }
+    size = 0;
+  }
+
+  // moves every entity along its heading, returns whether any of them moved
+  public boolean move(float delta) {
+    boolean moved = false;
+    for (int i = 0; i < size; i++) {
+      float distance = speed[i] * delta;
+      if (distance == 0) continue;
+      x[i] += MathUtils.cos(heading[i]) * distance;
+      z[i] += MathUtils.sin(heading[i]) * distance;
+      moved = true;
+    }
+    return moved;
+  }
+
+  // makes this a copy of other, handles included
+  public void set(EntityStore other) {
+    if (x.length < other.size) grow(other.x.length);
+    size = other.size;
+    System.arraycopy(other.x, 0, x, 0, size);
+    System.arraycopy(other.y, 0, y, 0, size);
+    System.arraycopy(other.z, 0, z, 0, size);
+    System.arraycopy(other.heading, 0, heading, 0, size);
+    System.arraycopy(other.speed, 0, speed, 0, size);
+    System.arraycopy(other.type, 0, type, 0, size);
+    System.arraycopy(other.owner, 0, owner, 0, size);
+    System.arraycopy(other.health, 0, health, 0, size);
+    System.arraycopy(other.handles, 0, handles, 0, size);
+    // copies into the arrays this store has, the hot path of the simulation allocates nothing once they are large
+    // enough
+    if (indices.length < other.slots) {
+      indices = new int[other.indices.length];
+      generations = new int[other.indices.length];
+    }
+    slots = other.slots;
+    System.arraycopy(other.indices, 0, indices, 0, slots);
+    System.arraycopy(other.generations, 0, generations, 0, slots);
+    freeSlots.clear();
+    freeSlots.addAll(other.freeSlots);
+  }
+
+  // a copy of to with positions and headings between those in from, for entities that exist in both
+  public void interpolate(EntityStore from, EntityStore to, float alpha) {
+    set(to);
+    for (int i = 0; i < size; i++) {
+      int j = from.index(handles[i]);
+      if (j == NONE) continue;
+      x[i] = MathUtils.lerp(from.x[j], x[i], alpha);
+      y[i] = MathUtils.lerp(from.y[j], y[i], alpha);
+      z[i] = MathUtils.lerp(from.z[j], z[i], alpha);
+      heading[i] = MathUtils.lerpAngle(from.heading[j], heading[i], alpha);
+    }
+  }
+
+  private void allocate(int capacity) {
+    x = new float[capacity];
+    y = new float[capacity];
+    z = new float[capacity];
+    heading = new float[capacity];
+    speed = new float[capacity];
+    type = new int[capacity];
+    owner = new int[capacity];
+    health = new int[capacity];
+    handles = new int[capacity];
+  }
+
+  private void grow(int capacity) {
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    z = Arrays.copyOf(z, capacity);
+    heading = Arrays.copyOf(heading, capacity);
+    speed = Arrays.copyOf(speed, capacity);
+    type = Arrays.copyOf(type, capacity);
+    owner = Arrays.copyOf(owner, capacity);
+    health = Arrays.copyOf(health, capacity);
+    handles = Arrays.copyOf(handles, capacity);
+  }
+}
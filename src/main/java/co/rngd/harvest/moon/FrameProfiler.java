@@ -0,0 +1,172 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import com.badlogic.gdx.graphics.g2d.*;
+import com.badlogic.gdx.utils.Array;
+
+// Time per named phase of a frame, kept for the last FRAMES frames in ring buffers, together with the bytes the
+// rendering thread allocated and the garbage collections during the frame. Phases are measured between begin and
+// end with nanoTime and may nest; time spent in a phase several times in one frame adds up. Disabled, begin, end
+// and endFrame return right away.
+// The frames can be written as JSON lines or CSV, one frame per line and the oldest first, to compare builds.
+public class FrameProfiler {
+  public static final int FRAMES = 300;
+
+  private final Array<String> names = new Array<>();
+  private long[] starts = new long[0], current = new long[0];
+  private long[][] samples = new long[0][];
+  private final long[] frames = new long[FRAMES], totals = new long[FRAMES], allocations = new long[FRAMES];
+  private final long[] collections = new long[FRAMES], collectionTimes = new long[FRAMES];
+  private int next, count;
+  private long frame, frameStart = -1, allocated, collected, collectionTime;
+  private boolean enabled;
+  private final com.sun.management.ThreadMXBean threads;
+  private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+  private final StringBuilder text = new StringBuilder();
+
+  public FrameProfiler() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    threads = bean instanceof com.sun.management.ThreadMXBean &&
+              ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported() ?
+              (com.sun.management.ThreadMXBean) bean : null;
+  }
+
+  // the id of the phase with this name, registered on first use
+  public int phase(String name) {
+    int phase = names.indexOf(name, false);
+    if (phase >= 0) return phase;
+    names.add(name);
+    starts = Arrays.copyOf(starts, names.size);
+    current = Arrays.copyOf(current, names.size);
+    samples = Arrays.copyOf(samples, names.size);
+    samples[names.size - 1] = new long[FRAMES];
+    return names.size - 1;
+  }
+
+  public boolean isEnabled() { return enabled; }
+
+  // frames recorded before are kept, the frame in progress when enabling is not recorded
+  public void setEnabled(boolean value) {
+    enabled = value;
+    frameStart = -1;
+    Arrays.fill(current, 0);
+  }
+
+  public void begin(int phase) {
+    if (!enabled) return;
+    starts[phase] = System.nanoTime();
+  }
+
+  public void end(int phase) {
+    if (!enabled) return;
+    current[phase] += System.nanoTime() - starts[phase];
+  }
+
+  // closes the frame, call once at the end of every frame on the rendering thread
+  public void endFrame() {
+    if (!enabled) return;
+    long now = System.nanoTime();
+    long nowAllocated = threads != null ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    long nowCollected = 0, nowCollectionTime = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      nowCollected += Math.max(collector.getCollectionCount(), 0);
+      nowCollectionTime += Math.max(collector.getCollectionTime(), 0);
+    }
+    if (frameStart >= 0) {
+      frames[next] = frame;
+      totals[next] = now - frameStart;
+      allocations[next] = nowAllocated - allocated;
+      collections[next] = nowCollected - collected;
+      collectionTimes[next] = nowCollectionTime - collectionTime;
+      for (int phase = 0; phase < names.size; phase++) samples[phase][next] = current[phase];
+      next = (next + 1) % FRAMES;
+      count = Math.min(count + 1, FRAMES);
+    }
+    Arrays.fill(current, 0);
+    frameStart = now;
+    allocated = nowAllocated;
+    collected = nowCollected;
+    collectionTime = nowCollectionTime;
+    frame++;
+  }
+
+  public int frameCount() { return count; }
+
+  // nanoseconds per frame over the recorded frames, phase -1 for whole frames
+  public long mean(int phase) {
+    long sum = 0;
+    for (int i = 0; i < count; i++) sum += (phase < 0 ? totals : samples[phase])[i];
+    return count == 0 ? 0 : sum / count;
+  }
+
+  public long max(int phase) {
+    long result = 0;
+    for (int i = 0; i < count; i++) result = Math.max(result, (phase < 0 ? totals : samples[phase])[i]);
+    return result;
+  }
+
+  public void clear() {
+    next = 0;
+    count = 0;
+  }
+
+  public void writeJsonLines(Writer writer) throws IOException {
+    for (int i = 0; i < count; i++) {
+      int slot = (next - count + i + FRAMES) % FRAMES;
+      writer.write("{\"frame\":" + frames[slot] + ",\"total\":" + totals[slot] + ",\"allocated\":" + allocations[slot] +
+                   ",\"gcCount\":" + collections[slot] + ",\"gcTime\":" + collectionTimes[slot] + ",\"phases\":{");
+      for (int phase = 0; phase < names.size; phase++) {
+        if (phase > 0) writer.write(',');
+        writer.write("\"" + names.get(phase) + "\":" + samples[phase][slot]);
+      }
+      writer.write("}}\n");
+    }
+    writer.flush();
+  }
+
+  public void writeCsv(Writer writer) throws IOException {
+    writer.write("frame,total,allocated,gcCount,gcTime");
+    for (String name : names) writer.write("," + name);
+    writer.write('\n');
+    for (int i = 0; i < count; i++) {
+      int slot = (next - count + i + FRAMES) % FRAMES;
+      writer.write(frames[slot] + "," + totals[slot] + "," + allocations[slot] + "," + collections[slot] + "," +
+                   collectionTimes[slot]);
+      for (int phase = 0; phase < names.size; phase++) writer.write("," + samples[phase][slot]);
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  // mean and worst time per phase in milliseconds, plus allocation and collections over the recorded frames
+  public void draw(SpriteBatch batch, BitmapFont font, float x, float y) {
+    text.setLength(0);
+    appendLine("frame", -1);
+    for (int phase = 0; phase < names.size; phase++) appendLine(names.get(phase), phase);
+    long bytes = 0, gcs = 0;
+    for (int i = 0; i < count; i++) {
+      bytes += allocations[i];
+      gcs += collections[i];
+    }
+    text.append("alloc ").append(count == 0 ? 0 : bytes / count / 1024).append(" KB/frame, gc ").append(gcs);
+    font.draw(batch, text, x, y);
+  }
+
+  private void appendLine(String name, int phase) {
+    text.append(name).append(' ');
+    appendMillis(mean(phase));
+    text.append(" / ");
+    appendMillis(max(phase));
+    text.append(" ms\n");
+  }
+
+  // fixed point with two decimals, StringBuilder.append(float) would allocate
+  private void appendMillis(long nanos) {
+    long hundredths = nanos / 10_000;
+    text.append(hundredths / 100).append('.');
+    if (hundredths % 100 < 10) text.append('0');
+    text.append(hundredths % 100);
+  }
+}
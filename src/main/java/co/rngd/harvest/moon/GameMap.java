@@ -1,12 +1,15 @@
 package co.rngd.harvest.moon;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 import com.badlogic.gdx.*;
 import com.badlogic.gdx.assets.*;
+import com.badlogic.gdx.files.*;
 import com.badlogic.gdx.math.*;
 import com.badlogic.gdx.math.collision.*;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.graphics.VertexAttributes.Usage;
 import com.badlogic.gdx.graphics.g3d.*;
@@ -16,36 +19,79 @@ import com.badlogic.gdx.graphics.g3d.environment.*;
 
 public class GameMap {
   public static class GameMapDataStore implements DataStore<GameMap> {
-    private static final int VERSION = 4;
+    private static final int VERSION = 5, PLAIN_VERSION = 4;
     private AssetManager assetManager;
+    private boolean compress = true;
 
     public void setAssetManager(AssetManager value) { this.assetManager = value; }
 
+    // deflates the encoded map layers, trading save time for a smaller file
+    public void setCompress(boolean value) { this.compress = value; }
+
     @Override
     public void writeTo(GameMap map, DataOutput output) throws IOException {
       output.writeInt(VERSION);
       output.writeInt(map.width);
       output.writeInt(map.height);
-      for (int i = 0; i < map.heightMap.length; i++)
-        output.writeInt(map.heightMap[i]);
-      for (int i = 0; i < map.objectMap.length; i++)
-        output.writeInt(map.objectMap[i]);
+      MapCodec codec = new MapCodec();
+      codec.encode(map.storage);
+      int encodedSize = codec.size();
+      if (compress) codec.deflate();
+      output.writeBoolean(compress);
+      output.writeInt(encodedSize);
+      output.writeInt(codec.size());
+      output.write(codec.getBytes(), 0, codec.size());
     }
 
     @Override
     public GameMap readFrom(DataInput input) throws IOException {
       int version = input.readInt();
-      if (version != VERSION) fail("GameMap version mismatch");
+      if (version != VERSION && version != PLAIN_VERSION) fail("GameMap version mismatch");
       int width = input.readInt(), height = input.readInt();
       GameMap result = new GameMap(width, height, assetManager);
-      for (int i = 0; i < result.heightMap.length; i++)
-        result.heightMap[i] = input.readInt();
-      for (int i = 0; i < result.objectMap.length; i++)
-        result.objectMap[i] = input.readInt();
+      if (version == PLAIN_VERSION) readPlain(result, input);
+      else {
+        boolean compressed = input.readBoolean();
+        int encodedSize = input.readInt(), storedSize = input.readInt();
+        if (encodedSize < 0 || storedSize < 0) fail("GameMap layer size out of range");
+        byte[] stored = new byte[storedSize];
+        input.readFully(stored);
+        byte[] encoded = compressed ? MapCodec.inflate(stored, storedSize, encodedSize) : stored;
+        new MapCodec().decode(encoded, encodedSize, result.storage);
+      }
       result.updateControlPoints();
-      result.updateObjectModels();
       return result;
     }
+
+    private void readPlain(GameMap map, DataInput input) throws IOException {
+      if (input instanceof BufferInput) {
+        readPlain(map, (BufferInput) input);
+        return;
+      }
+      for (int row = 0; row <= map.height; row++)
+        for (int column = 0; column <= map.width; column++)
+          map.storage.setHeight(row, column, input.readInt());
+      for (int row = 0; row < map.height; row++)
+        for (int column = 0; column < map.width; column++)
+          map.storage.setObject(row, column, input.readInt());
+    }
+
+    private void readPlain(GameMap map, BufferInput input) throws IOException {
+      ByteBuffer bytes = input.buffer();
+      long size = 4L * ((map.width + 1) * (long) (map.height + 1) + map.width * (long) map.height);
+      if (bytes.remaining() < size) throw new EOFException();
+      IntBuffer ints = bytes.asIntBuffer();
+      int[] values = new int[map.width + 1];
+      for (int row = 0; row <= map.height; row++) {
+        ints.get(values, 0, map.width + 1);
+        map.storage.setHeights(row, values);
+      }
+      for (int row = 0; row < map.height; row++) {
+        ints.get(values, 0, map.width);
+        map.storage.setObjects(row, values);
+      }
+      bytes.position(bytes.position() + (int) size);
+    }
   };
   public static final GameMapDataStore Store = new GameMapDataStore();
 
@@ -53,111 +99,281 @@ public class GameMap {
 
   public final int width, height;
   private final AssetManager assetManager;
-  private final int[] heightMap;
-  private final int[] objectMap;
-  private final Vector3[] controlPoints;
-  private final List<ModelInstance> objectModels;
-  private int minHeight, maxHeight;
+  private final MapStorage storage;
+  // x, y, z of five points per cell: the corners (00, 01, 11, 10) followed by the center, one array per chunk
+  // built when first needed and released again when the chunk leaves the resident window
+  private final float[][] controlPoints;
+  private final TerrainEditor editor;
+  private final BitSet dirtyChunks;
+  private final BitSet dirtyObjectChunks;
+  // chunks whose object models were built while some of their models were still loading
+  private final BitSet waitingObjectChunks;
+  private final ObjectMesh[] objectMeshes = new ObjectMesh[OBJECT_NAMES.length];
+  // positions and counts of the objects of a chunk per type, reused by createObjectChunkModel on the GL thread
+  private final float[][] objectPositions = new float[OBJECT_NAMES.length][];
+  private final int[] objectCounts = new int[OBJECT_NAMES.length];
+  private final ObjectIndex objectIndex;
+  // bumped whenever the heights or objects of a chunk change, for caches that are not rebuilt through dirtyChunks
+  private final int[] chunkVersions;
+  private final HeightPyramid pyramid;
+  private int residentRadius = Integer.MAX_VALUE / 4, focusRow, focusColumn;
+  private int residentRowFrom, residentRowTo, residentColumnFrom, residentColumnTo;
+  private int residentVersion;
 
   public GameMap(int width, int height, AssetManager assetManager) {
-    this.width = width;
-    this.height = height;
+    this(new ArrayMapStorage(width, height), assetManager);
+  }
+
+  public GameMap(MapStorage storage, AssetManager assetManager) {
+    this.width = storage.width();
+    this.height = storage.height();
     this.assetManager = assetManager;
-    this.controlPoints = new Vector3[width * height * 5];
-    for (int i = 0; i < this.controlPoints.length; i++) this.controlPoints[i] = new Vector3();
-    this.heightMap = new int[(width + 1) * (height + 1)];
-    this.objectMap = new int[width * height];
-    this.objectModels = new ArrayList<>();
+    this.storage = storage;
+    this.controlPoints = new float[chunkRows() * chunkColumns()][];
+    this.editor = new TerrainEditor(storage);
+    this.dirtyChunks = new BitSet(chunkRows() * chunkColumns());
+    this.pyramid = new HeightPyramid(storage);
+    this.dirtyObjectChunks = new BitSet(chunkRows() * chunkColumns());
+    this.waitingObjectChunks = new BitSet(chunkRows() * chunkColumns());
+    this.objectIndex = new ObjectIndex(storage, OBJECT_NAMES.length);
+    this.chunkVersions = new int[chunkRows() * chunkColumns()];
+    updateResidentWindow(height / 2, width / 2);
+  }
+
+  // a map backed by a memory mapped file, with only the chunks around the focus point resident
+  public static GameMap mapped(FileHandle file, int width, int height, AssetManager assetManager) throws IOException {
+    GameMap result = new GameMap(MappedMapStorage.create(file, width, height), assetManager);
+    result.setResidentRadius(DEFAULT_MAPPED_RADIUS);
+    return result;
+  }
+
+  public static GameMap openMapped(FileHandle file, AssetManager assetManager) throws IOException {
+    GameMap result = new GameMap(MappedMapStorage.open(file), assetManager);
+    result.setResidentRadius(DEFAULT_MAPPED_RADIUS);
+    result.buildPyramid(MappedMapStorage.CHUNK_SIZE);
+    return result;
+  }
+
+  // Builds the height pyramid one block of storage at a time and releases the storage outside the resident window
+  // after each, so opening a mapped map never has all of it mapped at once. Nodes above a block are recomputed from
+  // their children every time, the last block under a node leaves it right. Levels above the cells stay in memory.
+  private void buildPyramid(int block) {
+    for (int row = 0; row < height; row += block) {
+      for (int column = 0; column < width; column += block) {
+        pyramid.update(row, Math.min(row + block, height), column, Math.min(column + block, width));
+        retainResidentWindow();
+      }
+    }
+  }
+
+  private static final int DEFAULT_MAPPED_RADIUS = 256;
+
+  public void dispose() {
+    storage.dispose();
+  }
+
+  // copy of the heights and objects only, enough to save the map while this one keeps changing
+  public GameMap snapshot() {
+    return new GameMap(storage.copy(), assetManager);
   }
 
   public void raise(int row, int column, int toLevel) {
-    if (row < 0 || row > height) return;
-    if (column < 0 || column > width) return;
-    int hmIndex = row * (width + 1) + column;
-    if (heightMap[hmIndex] >= toLevel) return;
-    heightMap[hmIndex] = toLevel;
-    raise(row - 1, column - 1, toLevel - 1);
-    raise(row - 1, column    , toLevel - 1);
-    raise(row - 1, column + 1, toLevel - 1);
-    raise(row    , column - 1, toLevel - 1);
-    raise(row    , column + 1, toLevel - 1);
-    raise(row + 1, column - 1, toLevel - 1);
-    raise(row + 1, column    , toLevel - 1);
-    raise(row + 1, column + 1, toLevel - 1);
+    editor.begin();
+    editor.raise(row, column, toLevel);
+    markDirty(editor.getBounds());
   }
 
   public void lower(int row, int column, int toLevel) {
-    if (row < 0 || row > height) return;
-    if (column < 0 || column > width) return;
-    int hmIndex = row * (width + 1) + column;
-    if (heightMap[hmIndex] <= toLevel) return;
-    heightMap[hmIndex] = toLevel;
-    lower(row - 1, column - 1, toLevel + 1);
-    lower(row - 1, column    , toLevel + 1);
-    lower(row - 1, column + 1, toLevel + 1);
-    lower(row    , column - 1, toLevel + 1);
-    lower(row    , column + 1, toLevel + 1);
-    lower(row + 1, column - 1, toLevel + 1);
-    lower(row + 1, column    , toLevel + 1);
-    lower(row + 1, column + 1, toLevel + 1);
+    editor.begin();
+    editor.lower(row, column, toLevel);
+    markDirty(editor.getBounds());
   }
 
   public void crater(int r, int c, int rOuter, int rInner, int peak, int floor) {
-    int rOuterSq = rOuter * rOuter;
-    int rInnerSq = rInner * rInner;
-    for (int rr = r - rOuter; rr <= r + rOuter; rr++) {
-      for (int cc = c - rOuter; cc <= c + rOuter; cc++) {
-        int distSq = (rr - r) * (rr - r) + (cc - c) * (cc - c);
-        if (distSq < rOuterSq) raise(rr, cc, peak);
-      }
-    }
+    editor.begin();
+    editor.crater(r, c, rOuter, rInner, peak, floor);
+    markDirty(editor.getBounds());
+  }
+
+  // an editor of its own, for edits on other threads; the caller has to keep concurrent edits apart and call
+  // updateControlPoints afterwards
+  TerrainEditor newEditor() {
+    return new TerrainEditor(storage);
+  }
 
-    for (int rr = r - rInner; rr <= r + rInner; rr++) {
-      for (int cc = c - rInner; cc <= c + rInner; cc++) {
-        int distSq = (rr - r) * (rr - r) + (cc - c) * (cc - c);
-        if (distSq < rInnerSq) lower(rr, cc, floor);
+  // vertices changed by the last raise, lower or crater call
+  public TerrainEditor.Bounds getEditBounds() {
+    return editor.getBounds();
+  }
+
+  // a vertex is shared by the (up to) four cells around it, all of their chunks need new control points and flat cells
+  private void markDirty(TerrainEditor.Bounds bounds) {
+    if (bounds.isEmpty()) return;
+    int minRow = Math.max(bounds.minRow - 1, 0), maxRow = Math.min(bounds.maxRow, height - 1);
+    int minColumn = Math.max(bounds.minColumn - 1, 0), maxColumn = Math.min(bounds.maxColumn, width - 1);
+    for (int chunkRow = minRow / TILE_SIZE; chunkRow <= maxRow / TILE_SIZE; chunkRow++) {
+      for (int chunkColumn = minColumn / TILE_SIZE; chunkColumn <= maxColumn / TILE_SIZE; chunkColumn++) {
+        dirtyChunks.set(chunkRow * chunkColumns() + chunkColumn);
+        objectIndex.invalidateFlat(chunkRow * chunkColumns() + chunkColumn);
+        chunkVersions[chunkRow * chunkColumns() + chunkColumn]++;
       }
     }
   }
 
+  public int chunkRows() { return (height + TILE_SIZE - 1) / TILE_SIZE; }
+  public int chunkColumns() { return (width + TILE_SIZE - 1) / TILE_SIZE; }
+
+  public boolean hasDirtyChunks() { return !dirtyChunks.isEmpty(); }
+
   public void setObject(int row, int column, int objectId) {
     if (objectId >= OBJECT_NAMES.length) throw new IllegalArgumentException("Bad objectId: " + objectId);
-    objectMap[row * width + column] = objectId;
+    // random maps place objects from several threads
+    synchronized (objectIndex) {
+      int before = storage.getObject(row, column);
+      storage.setObject(row, column, objectId);
+      objectIndex.set(row, column, before, objectId);
+      dirtyObjectChunks.set((row / TILE_SIZE) * chunkColumns() + column / TILE_SIZE);
+      chunkVersions[(row / TILE_SIZE) * chunkColumns() + column / TILE_SIZE]++;
+    }
   }
 
+  public int getChunkVersion(int chunk) { return chunkVersions[chunk]; }
+
+  public ObjectIndex getObjectIndex() { return objectIndex; }
+
   public int getObjectId(int row, int column) {
-    return objectMap[row * width + column];
+    return storage.getObject(row, column);
+  }
+
+  // number of cells around the focus point whose chunks are kept resident
+  public void setResidentRadius(int value) {
+    residentRadius = value;
+    focus(focusRow, focusColumn);
+  }
+
+  // moves the resident window, releasing the control points and storage of chunks that fall out of it
+  public boolean focus(int row, int column) {
+    if (!updateResidentWindow(row, column)) return false;
+    for (int chunk = 0; chunk < controlPoints.length; chunk++)
+      if (!isChunkResident(chunk)) controlPoints[chunk] = null;
+    return true;
+  }
+
+  private boolean updateResidentWindow(int row, int column) {
+    focusRow = row;
+    focusColumn = column;
+    int rowFrom = Math.max(row - residentRadius, 0) / TILE_SIZE, rowTo = Math.min(row + residentRadius, height - 1) / TILE_SIZE;
+    int columnFrom = Math.max(column - residentRadius, 0) / TILE_SIZE, columnTo = Math.min(column + residentRadius, width - 1) / TILE_SIZE;
+    if (rowFrom == residentRowFrom && rowTo == residentRowTo && columnFrom == residentColumnFrom && columnTo == residentColumnTo) return false;
+    residentRowFrom = rowFrom;
+    residentRowTo = rowTo;
+    residentColumnFrom = columnFrom;
+    residentColumnTo = columnTo;
+    residentVersion++;
+    retainResidentWindow();
+    return true;
+  }
+
+  private void retainResidentWindow() {
+    storage.retain(residentRowFrom * TILE_SIZE, (residentRowTo + 1) * TILE_SIZE,
+                   residentColumnFrom * TILE_SIZE, (residentColumnTo + 1) * TILE_SIZE);
   }
 
+  public boolean isChunkResident(int chunk) {
+    int chunkRow = chunk / chunkColumns(), chunkColumn = chunk % chunkColumns();
+    return chunkRow >= residentRowFrom && chunkRow <= residentRowTo && chunkColumn >= residentColumnFrom && chunkColumn <= residentColumnTo;
+  }
+
+  // changes whenever the set of resident chunks does
+  public int getResidentVersion() { return residentVersion; }
+
+  // refreshes the control points of all resident chunks, the others are computed when first needed
   public void updateControlPoints() {
-    int index = 0;
-    minHeight = Integer.MAX_VALUE;
-    maxHeight = Integer.MIN_VALUE;
-    for (int row = 0; row < height; row++) {
-      for (int column = 0; column < width; column++) {
-        int hmIndex = row * (width + 1) + column;
-        int   h00 = heightMap[hmIndex],
-              h01 = heightMap[hmIndex + 1],
-              h10 = heightMap[hmIndex + width + 1],
-              h11 = heightMap[hmIndex + width + 2];
-        if (h00 > maxHeight) maxHeight = h00;
-        if (h01 > maxHeight) maxHeight = h01;
-        if (h10 > maxHeight) maxHeight = h10;
-        if (h11 > maxHeight) maxHeight = h11;
-        if (h00 < minHeight) minHeight = h00;
-        if (h01 < minHeight) minHeight = h01;
-        if (h10 < minHeight) minHeight = h10;
-        if (h11 < minHeight) minHeight = h11;
+    for (int chunk = 0; chunk < controlPoints.length; chunk++)
+      if (controlPoints[chunk] != null) updateControlPoints(chunk);
+    pyramid.update();
+    dirtyChunks.clear();
+    dirtyObjectChunks.clear();
+    objectIndex.invalidateFlat();
+    for (int chunk = 0; chunk < chunkVersions.length; chunk++) chunkVersions[chunk]++;
+  }
+
+  // recomputes the control points of all chunks touched since the last update, and appends their indices to changed
+  public boolean updateDirtyChunks(IntArray changed) {
+    if (dirtyChunks.isEmpty()) return false;
+    for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1)) {
+      if (controlPoints[chunk] != null) updateControlPoints(chunk);
+      int rowBase = (chunk / chunkColumns()) * TILE_SIZE, columnBase = (chunk % chunkColumns()) * TILE_SIZE;
+      pyramid.update(rowBase, Math.min(rowBase + TILE_SIZE, height), columnBase, Math.min(columnBase + TILE_SIZE, width));
+      changed.add(chunk);
+    }
+    dirtyChunks.clear();
+    return true;
+  }
+
+  // appends the chunks whose objects were set since the last call, terrain changes are reported by updateDirtyChunks
+  // chunks that waited for models count as changed once one of the missing models has loaded
+  public boolean updateDirtyObjectChunks(IntArray changed) {
+    if (!waitingObjectChunks.isEmpty() && objectModelLoaded()) {
+      dirtyObjectChunks.or(waitingObjectChunks);
+      waitingObjectChunks.clear();
+    }
+    if (dirtyObjectChunks.isEmpty()) return false;
+    for (int chunk = dirtyObjectChunks.nextSetBit(0); chunk >= 0; chunk = dirtyObjectChunks.nextSetBit(chunk + 1))
+      changed.add(chunk);
+    dirtyObjectChunks.clear();
+    return true;
+  }
+
+  private float[] controlPoints(int row, int column) {
+    int chunk = (row / TILE_SIZE) * chunkColumns() + column / TILE_SIZE;
+    float[] result = controlPoints[chunk];
+    if (result == null) {
+      result = controlPoints[chunk] = new float[TILE_SIZE * TILE_SIZE * 5 * 3];
+      updateControlPoints(chunk);
+    }
+    return result;
+  }
+
+  private static int controlOffset(int row, int column) {
+    return 5 * 3 * ((row % TILE_SIZE) * TILE_SIZE + column % TILE_SIZE);
+  }
+
+  private void updateControlPoints(int chunk) {
+    float[] cp = controlPoints[chunk];
+    int rowBase = (chunk / chunkColumns()) * TILE_SIZE, columnBase = (chunk % chunkColumns()) * TILE_SIZE;
+    int rowTo = Math.min(rowBase + TILE_SIZE, height), columnTo = Math.min(columnBase + TILE_SIZE, width);
+    for (int row = rowBase; row < rowTo; row++) {
+      int offset = controlOffset(row, columnBase);
+      for (int column = columnBase; column < columnTo; column++) {
+        int   h00 = storage.getHeight(row, column),
+              h01 = storage.getHeight(row, column + 1),
+              h10 = storage.getHeight(row + 1, column),
+              h11 = storage.getHeight(row + 1, column + 1);
         float h55 = centerHeight(h00, h01, h10, h11);
-        controlPoints[index++].set(row,        h00, column       );
-        controlPoints[index++].set(row,        h01, column +   1f);
-        controlPoints[index++].set(row +   1f, h11, column +   1f);
-        controlPoints[index++].set(row +   1f, h10, column       );
-        controlPoints[index++].set(row + 0.5f, h55, column + 0.5f);
+        offset = setControlPoint(cp, offset, row,        h00, column       );
+        offset = setControlPoint(cp, offset, row,        h01, column +   1f);
+        offset = setControlPoint(cp, offset, row +   1f, h11, column +   1f);
+        offset = setControlPoint(cp, offset, row +   1f, h10, column       );
+        offset = setControlPoint(cp, offset, row + 0.5f, h55, column + 0.5f);
       }
     }
   }
 
+  private static int setControlPoint(float[] cp, int offset, float x, float y, float z) {
+    cp[offset] = x;
+    cp[offset + 1] = y;
+    cp[offset + 2] = z;
+    return offset + 3;
+  }
+
+  // point 0-3 are the corners of the cell, 4 is its center
+  public Vector3 getControlPoint(int row, int column, int point, Vector3 out) {
+    float[] cp = controlPoints(row, column);
+    int offset = controlOffset(row, column) + 3 * point;
+    return out.set(cp[offset], cp[offset + 1], cp[offset + 2]);
+  }
+
   // computes the center height, is only guaranteed to work if height differs by at most 1 within a cell
   private float centerHeight(int h00, int h01, int h10, int h11) {
     int high = 0;
@@ -174,153 +390,343 @@ public class GameMap {
   }
 
   public int height(int row, int column) {
-    return heightMap[row * (width + 1) + column];
+    return storage.getHeight(row, column);
   }
 
   public boolean isFlat(int row, int column) {
-    int index = row * (width + 1) + column;
-    return heightMap[index] == heightMap[index + 1] &&
-           heightMap[index] == heightMap[index + width + 1] &&
-           heightMap[index] == heightMap[index + width + 2];
+    int h00 = storage.getHeight(row, column);
+    return h00 == storage.getHeight(row, column + 1) &&
+           h00 == storage.getHeight(row + 1, column) &&
+           h00 == storage.getHeight(row + 1, column + 1);
+  }
+
+  public static class Pick {
+    public final Vector3 point = new Vector3();
+    public int row, column;
+    public float distance;
   }
 
-  public void updateObjectModels() {
-    for (String name : OBJECT_NAMES) {
-      if (name != null && !assetManager.contains(name)) assetManager.load(name, Model.class);
+  public int intercept(Ray[] rays, Pick[] results, int count) {
+    int hits = 0;
+    for (int i = 0; i < count; i++) {
+      if (intercept(rays[i], results[i])) hits++;
+      else results[i].distance = Float.POSITIVE_INFINITY;
     }
-    objectModels.clear();
-    int index = 0;
-    for (int row = 0; row < height; row++) {
-      for (int column = 0; column < width; column++) {
-        String objectName = OBJECT_NAMES[objectMap[index++]];
-        if (objectName != null) {
-          Model objectModel = assetManager.finishLoadingAsset(objectName);
-          Matrix4 position = new Matrix4().setToTranslation(controlPoints[controlIndex(row, column) + 4]);
-          objectModels.add(new ModelInstance(objectModel, position));
-        }
+    return hits;
+  }
+
+  // walks the height pyramid front to back, skipping every block whose bounding box the ray misses or enters
+  // behind the nearest hit found so far; result is only written on a hit
+  public boolean intercept(Ray ray, Pick result) {
+    float ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+    float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+    boolean rowsForward = dx >= 0, columnsForward = dz >= 0;
+    float bestT = Float.POSITIVE_INFINITY;
+    int bestRow = -1, bestColumn = -1;
+
+    int sp = 0;
+    pickLevels[sp] = pyramid.levels() - 1;
+    pickNodes[sp++] = 0;
+    while (sp > 0) {
+      int level = pickLevels[--sp], node = pickNodes[sp];
+      int columns = pyramid.columns(level);
+      int r = node / columns, c = node - r * columns;
+      int size = 1 << level;
+      float enter = enterBox(ox, oy, oz, dx, dy, dz,
+          r * size, pyramid.min(level, r, c) - BOX_MARGIN, c * size,
+          Math.min((r + 1) * size, height), pyramid.max(level, r, c) + BOX_MARGIN, Math.min((c + 1) * size, width));
+      if (enter >= bestT) continue;
+
+      if (level == 0) {
+        float t = intersectCell(r, c, ox, oy, oz, dx, dy, dz);
+        if (t < bestT) { bestT = t; bestRow = r; bestColumn = c; }
+        continue;
       }
+
+      // push the four children far to near, so the nearest one is popped first
+      int childRows = pyramid.rows(level - 1), childColumns = pyramid.columns(level - 1);
+      int nearRow = rowsForward ? 2 * r : 2 * r + 1, farRow = rowsForward ? 2 * r + 1 : 2 * r;
+      int nearColumn = columnsForward ? 2 * c : 2 * c + 1, farColumn = columnsForward ? 2 * c + 1 : 2 * c;
+      sp = push(sp, level - 1, farRow, farColumn, childRows, childColumns);
+      sp = push(sp, level - 1, farRow, nearColumn, childRows, childColumns);
+      sp = push(sp, level - 1, nearRow, farColumn, childRows, childColumns);
+      sp = push(sp, level - 1, nearRow, nearColumn, childRows, childColumns);
     }
+
+    if (bestRow < 0) return false;
+    result.point.set(ox + dx * bestT, oy + dy * bestT, oz + dz * bestT);
+    result.row = bestRow;
+    result.column = bestColumn;
+    result.distance = bestT;
+    return true;
   }
 
-  public List<ModelInstance> getObjectModels() {
-    return objectModels;
-  }
-
-  private static final float EPS = 1e-9f;
-  public Vector3 intercept(Ray ray) {
-    Vector3 min = new Vector3(-1, minHeight - 1, -1),
-            max = new Vector3().set(width + 1, maxHeight + 1, height + 1),
-            rBase = new Vector3(ray.origin),
-            rDir = new Vector3(ray.direction),
-            s = new Vector3(1, 1, 1);
-    // normalise to positive directions
-    if (rDir.x < 0) { rDir.x = -rDir.x; rBase.x = -rBase.x; float tmp = min.x; min.x = -max.x; max.x = -tmp; s.x = -s.x; }
-    if (rDir.y < 0) { rDir.y = -rDir.y; rBase.y = -rBase.y; float tmp = min.y; min.y = -max.y; max.y = -tmp; s.y = -s.y; }
-    if (rDir.z < 0) { rDir.z = -rDir.z; rBase.z = -rBase.z; float tmp = min.z; min.z = -max.z; max.z = -tmp; s.z = -s.z; }
-
-    Vector3 invDir = new Vector3( 1.0f / rDir.x, 1.0f / rDir.y, 1.0f / rDir.z);
-
-    min.sub(rBase).scl(invDir);
-    max.sub(rBase).scl(invDir);
-    float tMin = 0;
-    if (min.x > tMin) tMin = min.x;
-    if (min.y > tMin) tMin = min.y;
-    if (min.z > tMin) tMin = min.z;
-    float tMax = max.x;
-    if (max.y < tMax) tMax = max.y;
-    if (max.z < tMax) tMax = max.z;
-
-    // march the ray segment
-    float time = tMin;
-    Vector3 pos = new Vector3(), tmp = new Vector3();
-
-    while (time < tMax) {
-      pos.set(rDir).scl(time).add(rBase);
-      int r = (int) pos.x,
-          h = (int) pos.y,
-          c = (int) pos.z;
-      int row = (int) (pos.x * s.x),
-          ht = (int) (pos.y * s.y),
-          col = (int) (pos.z * s.z);
-      if (row >= 0 && row < height)
-      if (col >= 0 && col < width)
-      if (Math.abs(ht - height(row, col)) <= 3) {
-        int index = controlIndex(row, col);
-        if (Intersector.intersectRayTriangle(ray, controlPoints[index + 0], controlPoints[index + 1], controlPoints[index + 4], tmp)) return tmp;
-        if (Intersector.intersectRayTriangle(ray, controlPoints[index + 1], controlPoints[index + 2], controlPoints[index + 4], tmp)) return tmp;
-        if (Intersector.intersectRayTriangle(ray, controlPoints[index + 2], controlPoints[index + 3], controlPoints[index + 4], tmp)) return tmp;
-        if (Intersector.intersectRayTriangle(ray, controlPoints[index + 3], controlPoints[index + 0], controlPoints[index + 4], tmp)) return tmp;
-      }
+  private static final float BOX_MARGIN = 1e-3f, EPS = 1e-9f;
+  // every pop pushes at most four children one level down, so the stack holds at most three nodes per level plus one
+  private final int[] pickLevels = new int[32 * 3 + 1], pickNodes = new int[32 * 3 + 1];
 
-      tmp.set(pos).sub(r, h, c);
-      if (tmp.x < EPS) tmp.x = 1f;
-      if (tmp.y < EPS) tmp.y = 1f;
-      if (tmp.z < EPS) tmp.z = 1f;
-      tmp.scl(invDir);
-      float dt = tmp.x <= tmp.y ? (tmp.x <= tmp.z ? tmp.x : tmp.z) : (tmp.y <= tmp.z ? tmp.y : tmp.z);
-      time += dt;
+  private int push(int sp, int level, int row, int column, int rows, int columns) {
+    if (row >= rows || column >= columns) return sp;
+    pickLevels[sp] = level;
+    pickNodes[sp] = row * columns + column;
+    return sp + 1;
+  }
+
+  // returns the ray parameter at which the box is entered, or positive infinity if it is missed
+  private static float enterBox(float ox, float oy, float oz, float dx, float dy, float dz,
+                                float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+    float enter = 0, exit = Float.POSITIVE_INFINITY;
+    if (Math.abs(dx) < EPS) { if (ox < minX || ox > maxX) return Float.POSITIVE_INFINITY; }
+    else {
+      float t0 = (minX - ox) / dx, t1 = (maxX - ox) / dx;
+      enter = Math.max(enter, Math.min(t0, t1));
+      exit = Math.min(exit, Math.max(t0, t1));
+    }
+    if (Math.abs(dy) < EPS) { if (oy < minY || oy > maxY) return Float.POSITIVE_INFINITY; }
+    else {
+      float t0 = (minY - oy) / dy, t1 = (maxY - oy) / dy;
+      enter = Math.max(enter, Math.min(t0, t1));
+      exit = Math.min(exit, Math.max(t0, t1));
     }
-    return null;
+    if (Math.abs(dz) < EPS) { if (oz < minZ || oz > maxZ) return Float.POSITIVE_INFINITY; }
+    else {
+      float t0 = (minZ - oz) / dz, t1 = (maxZ - oz) / dz;
+      enter = Math.max(enter, Math.min(t0, t1));
+      exit = Math.min(exit, Math.max(t0, t1));
+    }
+    return enter <= exit ? enter : Float.POSITIVE_INFINITY;
+  }
+
+  private float intersectCell(int row, int column, float ox, float oy, float oz, float dx, float dy, float dz) {
+    float[] cp = controlPoints(row, column);
+    int offset = controlOffset(row, column);
+    float t = Float.POSITIVE_INFINITY;
+    t = Math.min(t, intersectTriangle(cp, offset + 0, offset + 3, offset + 12, ox, oy, oz, dx, dy, dz));
+    t = Math.min(t, intersectTriangle(cp, offset + 3, offset + 6, offset + 12, ox, oy, oz, dx, dy, dz));
+    t = Math.min(t, intersectTriangle(cp, offset + 6, offset + 9, offset + 12, ox, oy, oz, dx, dy, dz));
+    t = Math.min(t, intersectTriangle(cp, offset + 9, offset + 0, offset + 12, ox, oy, oz, dx, dy, dz));
+    return t;
+  }
+
+  // Moller-Trumbore on three control point offsets, returns the ray parameter of the hit or positive infinity
+  private static float intersectTriangle(float[] cp, int a, int b, int c, float ox, float oy, float oz, float dx, float dy, float dz) {
+    float e1x = cp[b] - cp[a], e1y = cp[b + 1] - cp[a + 1], e1z = cp[b + 2] - cp[a + 2];
+    float e2x = cp[c] - cp[a], e2y = cp[c + 1] - cp[a + 1], e2z = cp[c + 2] - cp[a + 2];
+    float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+    float det = e1x * px + e1y * py + e1z * pz;
+    if (Math.abs(det) < EPS) return Float.POSITIVE_INFINITY;
+    float inv = 1f / det;
+    float sx = ox - cp[a], sy = oy - cp[a + 1], sz = oz - cp[a + 2];
+    float u = (sx * px + sy * py + sz * pz) * inv;
+    if (u < 0 || u > 1) return Float.POSITIVE_INFINITY;
+    float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+    float v = (dx * qx + dy * qy + dz * qz) * inv;
+    if (v < 0 || u + v > 1) return Float.POSITIVE_INFINITY;
+    float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+    return t >= 0 ? t : Float.POSITIVE_INFINITY;
   }
 
-  private static final int TILE_SIZE = 50;
+  static final int TILE_SIZE = 50;
 
-  public Model createSurfaceModel(ModelBuilder modelBuilder) {
+  static final VertexAttributes SURFACE_ATTRIBUTES = MeshBuilder.createAttributes(Usage.Position | Usage.Normal);
+  static final VertexAttributes GRID_ATTRIBUTES = MeshBuilder.createAttributes(Usage.Position);
+
+  // uploads a mesh built by buildChunkMeshes, on the GL thread
+  public Model createSurfaceChunkModel(int chunk, ChunkMesh mesh, ModelBuilder modelBuilder) {
     modelBuilder.begin();
-    for (int rowBase = 0; rowBase < height; rowBase += TILE_SIZE) {
-      int h = rowBase + TILE_SIZE > height ? height - rowBase : TILE_SIZE;
-      for (int columnBase = 0; columnBase < width; columnBase += TILE_SIZE) {
-        int w = columnBase + TILE_SIZE > width ? width - columnBase : TILE_SIZE;
-        MeshPartBuilder meshBuilder = modelBuilder.part(String.format("surface-%d,%d", rowBase, columnBase),
-            GL20.GL_TRIANGLES, Usage.Position | Usage.Normal, new Material(ColorAttribute.createDiffuse(0.7f, 0.7f, 0.8f, 1.0f)));
-        for (int row = 0; row < h; row++)
-          for (int column = 0; column < w; column++)
-            addCell(row + rowBase, column + columnBase, meshBuilder);
-      }
-    }
+    addSurfacePart(chunk, mesh, modelBuilder);
     return modelBuilder.end();
   }
 
-  public Model createGridModel(ModelBuilder modelBuilder) {
+  public Model createGridChunkModel(int chunk, ChunkMesh mesh, ModelBuilder modelBuilder) {
     modelBuilder.begin();
-    for (int rowBase = 0; rowBase < height; rowBase += TILE_SIZE) {
-      int h = rowBase + TILE_SIZE > height ? height - rowBase : TILE_SIZE;
-      for (int columnBase = 0; columnBase < width; columnBase += TILE_SIZE) {
-        int w = columnBase + TILE_SIZE > width ? width - columnBase : TILE_SIZE;
-        MeshPartBuilder meshBuilder = modelBuilder.part(String.format("grid-%d,%d", rowBase, columnBase),
-            GL20.GL_LINES, Usage.Position, new Material(ColorAttribute.createDiffuse(0.6f, 0.5f, 0.2f, 1.0f)));
-        for (int row = 0; row < h; row++)
-          for (int column = 0; column < w; column++)
-            addGridCell(row + rowBase, column + columnBase, meshBuilder);
+    addGridPart(chunk, mesh, modelBuilder);
+    return modelBuilder.end();
+  }
+
+  // all objects of a chunk merged into one part per object type and material, null when the chunk has no objects
+  public Model createObjectChunkModel(int chunk, ModelBuilder modelBuilder) {
+    int rowBase = (chunk / chunkColumns()) * TILE_SIZE, columnBase = (chunk % chunkColumns()) * TILE_SIZE;
+    int rowTo = Math.min(rowBase + TILE_SIZE, height), columnTo = Math.min(columnBase + TILE_SIZE, width);
+    float[][] positions = objectPositions;
+    int[] counts = objectCounts;
+    Arrays.fill(counts, 0);
+    boolean empty = true;
+    for (int row = rowBase; row < rowTo; row++) {
+      for (int column = columnBase; column < columnTo; column++) {
+        int objectId = storage.getObject(row, column);
+        if (OBJECT_NAMES[objectId] == null) continue;
+        if (positions[objectId] == null) positions[objectId] = new float[3 * TILE_SIZE * TILE_SIZE];
+        float[] cp = controlPoints(row, column);
+        System.arraycopy(cp, controlOffset(row, column) + 4 * 3, positions[objectId], 3 * counts[objectId]++, 3);
+        empty = false;
       }
     }
-    return modelBuilder.end();
+    if (empty) return null;
+    boolean started = false;
+    for (int objectId = 0; objectId < OBJECT_NAMES.length; objectId++) {
+      if (counts[objectId] == 0) continue;
+      ObjectMesh mesh = objectMesh(objectId);
+      if (mesh == null) {
+        waitingObjectChunks.set(chunk);
+        continue;
+      }
+      if (!started) modelBuilder.begin();
+      started = true;
+      String prefix = "objects-" + rowBase + "," + columnBase + "-" + objectId + "-";
+      mesh.build(modelBuilder, prefix, positions[objectId], counts[objectId]);
+    }
+    return started ? modelBuilder.end() : null;
+  }
+
+  // null while the model is loading; the asset manager loads it in the background and is updated every frame, so
+  // a model that was not preloaded does not stall the GL thread
+  private ObjectMesh objectMesh(int objectId) {
+    if (objectMeshes[objectId] == null) {
+      String name = OBJECT_NAMES[objectId];
+      if (!assetManager.contains(name)) assetManager.load(name, Model.class);
+      if (!assetManager.isLoaded(name, Model.class)) return null;
+      objectMeshes[objectId] = new ObjectMesh(assetManager.get(name, Model.class));
+    }
+    return objectMeshes[objectId];
+  }
+
+  private boolean objectModelLoaded() {
+    for (int objectId = 0; objectId < OBJECT_NAMES.length; objectId++)
+      if (OBJECT_NAMES[objectId] != null && objectMeshes[objectId] == null && assetManager.isLoaded(OBJECT_NAMES[objectId], Model.class))
+        return true;
+    return false;
   }
 
-  private void addCell(int row, int column, MeshPartBuilder meshBuilder) {
-    int index = controlIndex(row, column);
-    triangle(controlPoints[index + 0], controlPoints[index + 1], controlPoints[index + 4], meshBuilder);
-    triangle(controlPoints[index + 1], controlPoints[index + 2], controlPoints[index + 4], meshBuilder);
-    triangle(controlPoints[index + 2], controlPoints[index + 3], controlPoints[index + 4], meshBuilder);
-    triangle(controlPoints[index + 3], controlPoints[index + 0], controlPoints[index + 4], meshBuilder);
+  private void addSurfacePart(int chunk, ChunkMesh mesh, ModelBuilder modelBuilder) {
+    modelBuilder.part("surface-" + chunk, mesh.toMesh(SURFACE_ATTRIBUTES), GL20.GL_TRIANGLES,
+        new Material(ColorAttribute.createDiffuse(0.7f, 0.7f, 0.8f, 1.0f)));
   }
 
-  private void addGridCell(int row, int column, MeshPartBuilder meshBuilder) {
-    int index = controlIndex(row, column);
-    meshBuilder.line(controlPoints[index + 0], controlPoints[index + 1]);
-    meshBuilder.line(controlPoints[index + 1], controlPoints[index + 2]);
-    meshBuilder.line(controlPoints[index + 2], controlPoints[index + 3]);
-    meshBuilder.line(controlPoints[index + 3], controlPoints[index + 0]);
+  private void addGridPart(int chunk, ChunkMesh mesh, ModelBuilder modelBuilder) {
+    modelBuilder.part("grid-" + chunk, mesh.toMesh(GRID_ATTRIBUTES), GL20.GL_LINES,
+        new Material(ColorAttribute.createDiffuse(0.6f, 0.5f, 0.2f, 1.0f)));
   }
 
-  private int controlIndex(int row, int column) { return 5 * (row * width + column); }
+  // the control points of the chunk, computed if it has none; call on the thread that edits the map and pass the
+  // result to buildChunkMeshes on another thread
+  public float[] prepareChunk(int chunk) {
+    return controlPoints((chunk / chunkColumns()) * TILE_SIZE, (chunk % chunkColumns()) * TILE_SIZE);
+  }
 
-  private void triangle(Vector3 a, Vector3 b, Vector3 c, MeshPartBuilder meshBuilder) {
-    Vector3 normal = new Vector3().set(a).sub(c), aux = new Vector3().set(b).sub(c);
-    normal.crs(aux).nor();
-    meshBuilder.triangle(
-        meshBuilder.vertex(a, normal, null, null),
-        meshBuilder.vertex(b, normal, null, null),
-        meshBuilder.vertex(c, normal, null, null));
+  public void buildChunkMeshes(int chunk, ChunkMesh surface, ChunkMesh grid) {
+    buildChunkMeshes(chunk, prepareChunk(chunk), surface, grid);
+  }
+
+  // Fills surface with positions and normals of the surface of a chunk and grid with the lines of its grid, in one
+  // pass over the cells; either may be null. Threading: cp must come from prepareChunk, called on the thread that
+  // edits the map before handing the chunk to a worker. The worker only reads cp, which holds the corner heights as
+  // well, and never touches the storage or the control points of the map, so focus releasing storage chunks and
+  // picking on the editing thread do not race with it. An edit to the
+  // chunk while it builds rewrites cp in place and makes the result outdated, callers drop it and build again, as
+  // TerrainModel does with its versions. Flat cells are merged greedily into rectangles of the same height, each
+  // drawn as one quad with shared corners; sloped cells keep their fan of four triangles. The grid shares its
+  // vertices and every cell adds its top and left edge, the bottom and right edges of a chunk come from the next
+  // chunk unless it is the edge of the map.
+  public void buildChunkMeshes(int chunk, float[] cp, ChunkMesh surface, ChunkMesh grid) {
+    int rowBase = (chunk / chunkColumns()) * TILE_SIZE, columnBase = (chunk % chunkColumns()) * TILE_SIZE;
+    int h = rowBase + TILE_SIZE > height ? height - rowBase : TILE_SIZE;
+    int w = columnBase + TILE_SIZE > width ? width - columnBase : TILE_SIZE;
+    boolean lastRow = rowBase + h == height, lastColumn = columnBase + w == width;
+    // cells already covered by a flat rectangle
+    boolean[] done = surface != null ? surface.marks(TILE_SIZE * TILE_SIZE) : null;
+    if (surface != null) surface.clear();
+    if (grid != null) grid.clear();
+    for (int row = 0; row < h; row++) {
+      for (int column = 0; column < w; column++) {
+        int r = row + rowBase, c = column + columnBase;
+        if (grid != null) {
+          // vertex (i, j) of the chunk has index i * (w + 1) + j
+          int top = row * (w + 1) + column, bottom = top + w + 1;
+          gridVertex(cp, r, c, rowBase + h, columnBase + w, grid);
+          if (column == w - 1) gridVertex(cp, r, c + 1, rowBase + h, columnBase + w, grid);
+          grid.line((short) top, (short) (top + 1));
+          grid.line((short) top, (short) bottom);
+          if (lastColumn && column == w - 1) grid.line((short) (top + 1), (short) (bottom + 1));
+          if (lastRow && row == h - 1) grid.line((short) bottom, (short) (bottom + 1));
+        }
+        if (surface == null || done[row * TILE_SIZE + column]) continue;
+        if (!isFlat(cp, r, c)) {
+          addCell(cp, r, c, surface);
+          continue;
+        }
+        float level = cp[controlOffset(r, c) + 1];
+        int columnTo = column + 1;
+        while (columnTo < w && !done[row * TILE_SIZE + columnTo] && isFlatAt(cp, r, columnTo + columnBase, level)) columnTo++;
+        int rowTo = row + 1;
+        rows:
+        for (; rowTo < h; rowTo++)
+          for (int j = column; j < columnTo; j++)
+            if (done[rowTo * TILE_SIZE + j] || !isFlatAt(cp, rowTo + rowBase, j + columnBase, level)) break rows;
+        for (int i = row; i < rowTo; i++)
+          for (int j = column; j < columnTo; j++)
+            done[i * TILE_SIZE + j] = true;
+        addFlatRect(cp, r, c, rowTo + rowBase - 1, columnTo + columnBase - 1, surface);
+      }
+    }
+    if (grid != null)
+      for (int column = 0; column <= w; column++) gridVertex(cp, rowBase + h, columnBase + column, rowBase + h, columnBase + w, grid);
+  }
+
+  // the vertex at (row, column), taken from the control points of the cell of the chunk that has it as a corner
+  private short gridVertex(float[] cp, int row, int column, int rowTo, int columnTo, ChunkMesh grid) {
+    int r = Math.min(row, rowTo - 1), c = Math.min(column, columnTo - 1);
+    int point = row > r ? (column > c ? 6 : 9) : (column > c ? 3 : 0);
+    int offset = controlOffset(r, c) + point;
+    return grid.vertex(cp[offset], cp[offset + 1], cp[offset + 2]);
+  }
+
+  // the corners of a cell are control points with the corner heights as y, exact for heights below 2^24
+  private static boolean isFlat(float[] cp, int row, int column) {
+    int offset = controlOffset(row, column) + 1;
+    float level = cp[offset];
+    return level == cp[offset + 3] && level == cp[offset + 6] && level == cp[offset + 9];
+  }
+
+  private static boolean isFlatAt(float[] cp, int row, int column, float level) {
+    return cp[controlOffset(row, column) + 1] == level && isFlat(cp, row, column);
+  }
+
+  // the cells from (row0, column0) to (row1, column1) inclusive, with the corners of the corner cells
+  private void addFlatRect(float[] cp, int row0, int column0, int row1, int column1, ChunkMesh mesh) {
+    short v00 = flatVertex(cp, row0, column0, 0, mesh), v01 = flatVertex(cp, row0, column1, 3, mesh);
+    short v11 = flatVertex(cp, row1, column1, 6, mesh), v10 = flatVertex(cp, row1, column0, 9, mesh);
+    mesh.triangle(v00, v01, v11);
+    mesh.triangle(v11, v10, v00);
+  }
+
+  private short flatVertex(float[] cp, int row, int column, int point, ChunkMesh mesh) {
+    int offset = controlOffset(row, column) + point;
+    return mesh.vertex(cp[offset], cp[offset + 1], cp[offset + 2], 0, 1, 0);
+  }
+
+  private void addCell(float[] cp, int row, int column, ChunkMesh mesh) {
+    int offset = controlOffset(row, column);
+    triangle(cp, offset + 0, offset + 3, offset + 12, mesh);
+    triangle(cp, offset + 3, offset + 6, offset + 12, mesh);
+    triangle(cp, offset + 6, offset + 9, offset + 12, mesh);
+    triangle(cp, offset + 9, offset + 0, offset + 12, mesh);
+  }
+
+  // a, b and c are offsets into the control points cp
+  private static void triangle(float[] cp, int a, int b, int c, ChunkMesh mesh) {
+    float ux = cp[a] - cp[c], uy = cp[a + 1] - cp[c + 1], uz = cp[a + 2] - cp[c + 2],
+          vx = cp[b] - cp[c], vy = cp[b + 1] - cp[c + 1], vz = cp[b + 2] - cp[c + 2];
+    float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+    float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+    if (length != 0) {
+      nx /= length;
+      ny /= length;
+      nz /= length;
+    }
+    mesh.triangle(
+        mesh.vertex(cp[a], cp[a + 1], cp[a + 2], nx, ny, nz),
+        mesh.vertex(cp[b], cp[b + 1], cp[b + 2], nx, ny, nz),
+        mesh.vertex(cp[c], cp[c + 1], cp[c + 2], nx, ny, nz));
   }
 }
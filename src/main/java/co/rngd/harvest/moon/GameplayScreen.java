@@ -1,10 +1,13 @@
 package co.rngd.harvest.moon;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 import com.badlogic.gdx.*;
+import com.badlogic.gdx.files.*;
 import com.badlogic.gdx.math.*;
 import com.badlogic.gdx.math.collision.*;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.graphics.VertexAttributes.Usage;
 import com.badlogic.gdx.graphics.g2d.*;
@@ -22,15 +25,96 @@ public class GameplayScreen extends ScreenAdapter {
   private State state = new State();
 
   public static class State {
+    // held controls, bits of the controls argument of step
+    public static final int MOVE_UP = 1, MOVE_DOWN = 2, MOVE_LEFT = 4, MOVE_RIGHT = 8, ZOOM_IN = 16, ZOOM_OUT = 32,
+                            PAN_LEFT = 64, PAN_RIGHT = 128, TILT_UP = 256, TILT_DOWN = 512;
+
     private GameMap map;
+    private final EntityStore entities = new EntityStore();
 
     private Vector3 cameraFocus = new Vector3(0, 0, 0);
     private float pan = (float) Math.PI / 3, tilt = (float) Math.PI / 6, distance = 30f;
     private boolean pauseMode = false;
     private boolean showGrid = true;
 
+    public State() { }
+
+    public State(GameMap map) {
+      this.map = map;
+      this.cameraFocus.set(map.height / 2, 0, map.width / 2);
+    }
+
+    // copy that can be saved on another thread while this state keeps changing
+    public State snapshot() {
+      State result = new State();
+      result.map = map.snapshot();
+      result.entities.set(entities);
+      result.cameraFocus.set(cameraFocus);
+      result.pan = pan;
+      result.tilt = tilt;
+      result.distance = distance;
+      result.pauseMode = pauseMode;
+      result.showGrid = showGrid;
+      return result;
+    }
+
+    // copies the values of other, the map is shared
+    public void set(State other) {
+      map = other.map;
+      entities.set(other.entities);
+      cameraFocus.set(other.cameraFocus);
+      pan = other.pan;
+      tilt = other.tilt;
+      distance = other.distance;
+      pauseMode = other.pauseMode;
+      showGrid = other.showGrid;
+    }
+
+    // the camera between from and to, the rest as in to
+    public void interpolate(State from, State to, float alpha) {
+      set(to);
+      entities.interpolate(from.entities, to.entities, alpha);
+      cameraFocus.set(from.cameraFocus).lerp(to.cameraFocus, alpha);
+      pan = MathUtils.lerp(from.pan, to.pan, alpha);
+      tilt = MathUtils.lerp(from.tilt, to.tilt, alpha);
+      distance = MathUtils.lerp(from.distance, to.distance, alpha);
+    }
+
+    // advances the state by delta seconds with the controls held down, returns false when nothing changed
+    public boolean step(int controls, float delta) {
+      if (pauseMode || map == null) return false;
+      boolean moved = entities.move(delta);
+      if ((controls & MOVE_UP) != 0)
+        cameraFocus.sub((float) Math.sin(pan) * delta * V_MOVE, 0 , (float) Math.cos(pan) * delta * V_MOVE);
+      if ((controls & MOVE_DOWN) != 0)
+        cameraFocus.add((float) Math.sin(pan) * delta * V_MOVE, 0 , (float) Math.cos(pan) * delta * V_MOVE);
+      if ((controls & MOVE_LEFT) != 0)
+        cameraFocus.add((float) -Math.cos(pan) * delta * V_MOVE, 0 , (float) Math.sin(pan) * delta * V_MOVE);
+      if ((controls & MOVE_RIGHT) != 0)
+        cameraFocus.sub((float) -Math.cos(pan) * delta * V_MOVE, 0 , (float) Math.sin(pan) * delta * V_MOVE);
+      if ((controls & ZOOM_IN) != 0) distance -= delta * V_DIST;
+      if ((controls & ZOOM_OUT) != 0) distance += delta * V_DIST;
+      if ((controls & PAN_LEFT) != 0) pan -= delta * V_PAN;
+      if ((controls & PAN_RIGHT) != 0) pan += delta * V_PAN;
+      if ((controls & TILT_UP) != 0) tilt += delta * V_TILT;
+      if ((controls & TILT_DOWN) != 0) tilt -= delta * V_TILT;
+
+      if (cameraFocus.x < 0) cameraFocus.x = 0;
+      if (cameraFocus.x > map.height) cameraFocus.x = map.height;
+      if (cameraFocus.z < 0) cameraFocus.z = 0;
+      if (cameraFocus.z > map.width) cameraFocus.z = map.width;
+      if (distance < MIN_DIST) distance = MIN_DIST;
+      if (distance > MAX_DIST) distance = MAX_DIST;
+      if (tilt < MIN_TILT) tilt = MIN_TILT;
+      if (tilt > MAX_TILT) tilt = MAX_TILT;
+      return moved || controls != 0;
+    }
+
+    public GameMap getMap() { return map; }
+    public EntityStore getEntities() { return entities; }
+
     public static final DataStore<State> Store = new DataStore<State>() {
-      private static final int VERSION = 1;
+      private static final int VERSION = 2, NO_ENTITIES_VERSION = 1;
 
       @Override
       public void writeTo(State state, DataOutput output) throws IOException {
@@ -44,11 +128,13 @@ public class GameplayScreen extends ScreenAdapter {
         output.writeBoolean(state.pauseMode);
         output.writeBoolean(state.showGrid);
         GameMap.Store.writeTo(state.map, output);
+        EntityStore.Store.writeTo(state.entities, output);
       }
 
       @Override
       public State readFrom(DataInput input) throws IOException {
-        if (input.readInt() != VERSION) fail("GameplayScreen.State version mismatch");
+        int version = input.readInt();
+        if (version != VERSION && version != NO_ENTITIES_VERSION) fail("GameplayScreen.State version mismatch");
         State state = new State();
         state.cameraFocus.x = input.readFloat();
         state.cameraFocus.y = input.readFloat();
@@ -59,6 +145,7 @@ public class GameplayScreen extends ScreenAdapter {
         state.pauseMode = input.readBoolean();
         state.showGrid = input.readBoolean();
         state.map = GameMap.Store.readFrom(input);
+        if (version != NO_ENTITIES_VERSION) state.entities.set(EntityStore.Store.readFrom(input));
         return state;
       }
     };
@@ -67,14 +154,37 @@ public class GameplayScreen extends ScreenAdapter {
   private PerspectiveCamera camera;
   private Environment environment;
 
-  private ModelInstance mapModel;
-  private ModelInstance gridModel;
+  private Simulation simulation;
+  private TerrainModel terrainModel;
+  private final EntityInstances entityInstances = new EntityInstances();
+
+  private final FrameProfiler profiler = new FrameProfiler();
+  private final int INPUT = profiler.phase("input"), STORE = profiler.phase("store"), TERRAIN = profiler.phase("terrain");
+  private final int SELECTION = profiler.phase("selection"), ENTITIES = profiler.phase("entities");
+  private final int MODELS = profiler.phase("models"), UI = profiler.phase("ui");
+  private boolean showProfile;
+  private BitmapFont font;
   private ModelInstance selectionModel;
   private boolean showSelection;
 
   private ImageButton pauseButton;
   private PauseMenu pauseMenu;
 
+  // With idle rendering libGDX only renders continuously while something is in flight: the simulation changing,
+  // terrain building, a game being stored or the profiler showing. Otherwise it draws a frame on input, when the
+  // simulation publishes a change and when the window asks for one. What the last frame showed is kept to tell
+  // whether the camera, the mouse, the pause menu or the grid changed; dirty is set for changes from outside render.
+  private boolean idleRendering = true;
+  private boolean dirty = true;
+  private final Vector3 shownFocus = new Vector3();
+  private float shownPan, shownTilt, shownDistance;
+  private int shownMouseX = -1, shownMouseY = -1;
+  private boolean shownPauseMode, shownGrid;
+
+  private final BackgroundStore<State> stateStore = new BackgroundStore<>(State.Store);
+  private CompletableFuture<State> pendingLoad;
+  private CompletableFuture<Void> pendingSave;
+
 
   public GameplayScreen(ModelBatch modelBatch, SpriteBatch spriteBatch, TextureCache textureCache) {
     this.modelBatch = modelBatch;
@@ -87,17 +197,26 @@ public class GameplayScreen extends ScreenAdapter {
     state.cameraFocus.set(map.height / 2, 0, map.width / 2);
 
     rebuildMapModels();
+    restartSimulation();
   }
 
+  private void restartSimulation() {
+    if (simulation != null) simulation.dispose();
+    simulation = new Simulation(state);
+    Graphics graphics = Gdx.graphics;
+    simulation.setPublishListener(graphics::requestRendering);
+  }
+
+  public Simulation getSimulation() { return simulation; }
+  public EntityInstances getEntityInstances() { return entityInstances; }
+
   private void rebuildMapModels() {
-    if (mapModel != null) mapModel.model.dispose();
-    if (gridModel != null) gridModel.model.dispose();
+    if (terrainModel != null) terrainModel.dispose();
 
     ModelBuilder modelBuilder = new ModelBuilder();
-    mapModel = new ModelInstance(state.map.createSurfaceModel(modelBuilder));
-    gridModel = new ModelInstance(state.map.createGridModel(modelBuilder));
+    terrainModel = new TerrainModel(state.map);
     selectionModel = new ModelInstance(makeSelectionModel(modelBuilder));
-    state.map.updateObjectModels();
+    dirty = true;
   }
 
   Model makeSelectionModel(ModelBuilder builder) {
@@ -115,9 +234,11 @@ public class GameplayScreen extends ScreenAdapter {
   }
 
   public void setState(State state) {
+    if (this.state.map != null && this.state.map != state.map) this.state.map.dispose();
     this.state = state;
 
     rebuildMapModels();
+    restartSimulation();
     if (camera != null) updateCamera();
   }
 
@@ -138,8 +259,22 @@ public class GameplayScreen extends ScreenAdapter {
     pauseButton.setSize(40, 40);
 
     pauseMenu = new PauseMenu();
+    dirty = true;
+  }
+
+  @Override
+  public void hide() {
+    Gdx.graphics.setContinuousRendering(true);
+  }
+
+  // off renders every frame, as without it
+  public void setIdleRendering(boolean value) {
+    idleRendering = value;
+    if (!value) Gdx.graphics.setContinuousRendering(true);
   }
 
+  public boolean isIdleRendering() { return idleRendering; }
+
   private void updateCamera() {
     camera.position.set((float) (Math.sin(state.pan) * Math.cos(state.tilt) * state.distance),
                         (float) (                      Math.sin(state.tilt) * state.distance),
@@ -157,24 +292,22 @@ public class GameplayScreen extends ScreenAdapter {
     camera.viewportWidth = width;
     camera.viewportHeight = height;
     updateCamera();
+    dirty = true;
 
     spriteBatch.setProjectionMatrix(new Matrix4().setToOrtho2D(0, 0, width, height));
   }
 
+  private final GameMap.Pick pick = new GameMap.Pick();
+
   private void updateSelectionModel() {
     Ray ray = camera.getPickRay(Gdx.input.getX(), Gdx.input.getY());
-    Vector3 selected = state.map.intercept(ray);
-    if (selected == null) {
+    if (!state.map.intercept(ray, pick)) {
       showSelection = false;
       return;
     }
     showSelection = true;
 
-    int r = (int) selected.x, c = (int) selected.z;
-    if (r < 0) r = 0;
-    if (r >= state.map.height) r = state.map.height - 1;
-    if (c < 0) c = 0;
-    if (c >= state.map.width) c = state.map.width - 1;
+    int r = pick.row, c = pick.column;
     int h00 = state.map.height(r, c);
     int h01 = state.map.height(r, c + 1);
     int h10 = state.map.height(r + 1, c);
@@ -185,8 +318,10 @@ public class GameplayScreen extends ScreenAdapter {
 
   @Override
   public void dispose() {
-    if (mapModel != null) mapModel.model.dispose();
-    if (gridModel != null) gridModel.model.dispose();
+    if (simulation != null) simulation.dispose();
+    stateStore.dispose();
+    if (terrainModel != null) terrainModel.dispose();
+    if (font != null) font.dispose();
   }
 
   private static final float MIN_DIST = 5f, MAX_DIST = 200f, V_DIST = 25f;
@@ -201,64 +336,162 @@ public class GameplayScreen extends ScreenAdapter {
     Gdx.gl.glViewport(0, 0, width, height);
     Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
 
-    if (!state.pauseMode) {
-      if (Gdx.input.isKeyPressed(Input.Keys.UP))
-        state.cameraFocus.sub((float) Math.sin(state.pan) * delta * V_MOVE, 0 , (float) Math.cos(state.pan) * delta * V_MOVE);
-      if (Gdx.input.isKeyPressed(Input.Keys.DOWN))
-        state.cameraFocus.add((float) Math.sin(state.pan) * delta * V_MOVE, 0 , (float) Math.cos(state.pan) * delta * V_MOVE);
-      if (Gdx.input.isKeyPressed(Input.Keys.LEFT))
-        state.cameraFocus.add((float) -Math.cos(state.pan) * delta * V_MOVE, 0 , (float) Math.sin(state.pan) * delta * V_MOVE);
-      if (Gdx.input.isKeyPressed(Input.Keys.RIGHT))
-        state.cameraFocus.sub((float) -Math.cos(state.pan) * delta * V_MOVE, 0 , (float) Math.sin(state.pan) * delta * V_MOVE);
-      if (Gdx.input.isKeyPressed(Input.Keys.PAGE_UP)) state.distance -= delta * V_DIST;
-      if (Gdx.input.isKeyPressed(Input.Keys.PAGE_DOWN)) state.distance += delta * V_DIST;
-      if (Gdx.input.isKeyPressed(Input.Keys.A)) state.pan -= delta * V_PAN;
-      if (Gdx.input.isKeyPressed(Input.Keys.D)) state.pan += delta * V_PAN;
-      if (Gdx.input.isKeyPressed(Input.Keys.W)) state.tilt += delta * V_TILT;
-      if (Gdx.input.isKeyPressed(Input.Keys.S)) state.tilt -= delta * V_TILT;
-
-      if (state.cameraFocus.x < 0) state.cameraFocus.x = 0;
-      if (state.cameraFocus.x > state.map.height) state.cameraFocus.x = state.map.height;
-      if (state.cameraFocus.z < 0) state.cameraFocus.z = 0;
-      if (state.cameraFocus.z > state.map.width) state.cameraFocus.z = state.map.width;
-      if (state.distance < MIN_DIST) state.distance = MIN_DIST;
-      if (state.distance > MAX_DIST) state.distance = MAX_DIST;
-      if (state.tilt < MIN_TILT) state.tilt = MIN_TILT;
-      if (state.tilt > MAX_TILT) state.tilt = MAX_TILT;
+    profiler.begin(INPUT);
+    simulation.setControls(heldControls());
+    simulation.read(state);
+    if (cameraMoved()) {
       updateCamera();
+      dirty = true;
     }
-    if (pauseButton.wasPressed()) state.pauseMode = !state.pauseMode;
-    if (pauseMenu.wasClosePressed()) state.pauseMode = false;
-    if (pauseMenu.wasExitPressed()) Gdx.app.exit();
-    if (pauseMenu.wasLoadPressed()) {
-      setState(State.Store.read(Gdx.files.external("savegame.dat")));
-    }
-    if (pauseMenu.wasSavePressed()) {
-      State.Store.write(state, Gdx.files.external("savegame.dat"));
+    if (state.pauseMode != shownPauseMode || state.showGrid != shownGrid) {
+      shownPauseMode = state.pauseMode;
+      shownGrid = state.showGrid;
+      dirty = true;
     }
+    boolean mouseMoved = Gdx.input.getX() != shownMouseX || Gdx.input.getY() != shownMouseY;
+    shownMouseX = Gdx.input.getX();
+    shownMouseY = Gdx.input.getY();
 
+    if (pauseButton.wasPressed()) simulation.submit(s -> s.pauseMode = !s.pauseMode);
+    if (pauseMenu.wasClosePressed()) simulation.submit(s -> s.pauseMode = false);
+    if (pauseMenu.wasExitPressed()) Gdx.app.exit();
     pauseButton.update();
     if (state.pauseMode) pauseMenu.update();
-
-    updateSelectionModel();
-
+    profiler.end(INPUT);
+
+    profiler.begin(STORE);
+    if (pauseMenu.wasLoadPressed() && pendingLoad == null) loadGame(Gdx.files.external("savegame.dat"));
+    if (pauseMenu.wasSavePressed()) saveGame(Gdx.files.external("savegame.dat"));
+    finishBackgroundStore();
+    profiler.end(STORE);
+
+    profiler.begin(TERRAIN);
+    state.map.focus((int) state.cameraFocus.x, (int) state.cameraFocus.z);
+    if (terrainModel.update()) dirty = true;
+    terrainModel.setGridOffset(state.distance / 1000f);
+    if (dirty) terrainModel.cull(camera.frustum);
+    profiler.end(TERRAIN);
+
+    profiler.begin(SELECTION);
+    if (dirty || mouseMoved) updateSelectionModel();
+    profiler.end(SELECTION);
+
+    profiler.begin(ENTITIES);
+    entityInstances.update(state.entities, camera.frustum);
+    profiler.end(ENTITIES);
+
+    // the batch draws everything in end, so this is one phase
+    profiler.begin(MODELS);
     modelBatch.begin(camera);
-    modelBatch.render(mapModel, environment);
-    for (ModelInstance instance : state.map.getObjectModels())
-      modelBatch.render(instance, environment);
+    modelBatch.render(terrainModel.getSurface(), environment);
+    modelBatch.render(terrainModel.getObjects(), environment);
+    modelBatch.render(entityInstances.getVisible(), environment);
     if (!state.pauseMode) modelBatch.render(selectionModel, environment);
-    if (state.showGrid) {
-      gridModel.transform.setToTranslation(0, state.distance / 1000f, 0);
-      modelBatch.render(gridModel, environment);
-    }
+    if (state.showGrid) modelBatch.render(terrainModel.getGrid(), environment);
     modelBatch.end();
+    profiler.end(MODELS);
 
+    profiler.begin(UI);
     spriteBatch.begin();
     pauseButton.draw(spriteBatch);
     if (state.pauseMode) pauseMenu.draw(width, height);
+    if (showProfile) profiler.draw(spriteBatch, font(), 10, height - 10);
     spriteBatch.end();
+    profiler.end(UI);
+    profiler.endFrame();
+    dirty = false;
+
+    if (idleRendering) Gdx.graphics.setContinuousRendering(simulation.isChanging() || terrainModel.isBuilding() ||
+                                                           isStoreBusy() || showProfile);
+  }
+
+  // whether the camera parameters changed since the last frame
+  private boolean cameraMoved() {
+    if (state.cameraFocus.equals(shownFocus) && state.pan == shownPan && state.tilt == shownTilt &&
+        state.distance == shownDistance) return false;
+    shownFocus.set(state.cameraFocus);
+    shownPan = state.pan;
+    shownTilt = state.tilt;
+    shownDistance = state.distance;
+    return true;
+  }
+
+  private BitmapFont font() {
+    if (font == null) font = new BitmapFont();
+    return font;
+  }
+
+  public FrameProfiler getProfiler() { return profiler; }
+
+  // writes the recorded frames next to the save game, as JSON lines and as CSV
+  public void dumpProfile() {
+    String name = "profile-" + System.currentTimeMillis();
+    try (Writer jsonLines = Gdx.files.external(name + ".jsonl").writer(false);
+         Writer csv = Gdx.files.external(name + ".csv").writer(false)) {
+      profiler.writeJsonLines(jsonLines);
+      profiler.writeCsv(csv);
+    }
+    catch (IOException | GdxRuntimeException e) {
+      Gdx.app.error("GameplayScreen", "Failed to write profile", e);
+    }
+  }
+
+
+  private static int heldControls() {
+    int controls = 0;
+    if (Gdx.input.isKeyPressed(Input.Keys.UP)) controls |= State.MOVE_UP;
+    if (Gdx.input.isKeyPressed(Input.Keys.DOWN)) controls |= State.MOVE_DOWN;
+    if (Gdx.input.isKeyPressed(Input.Keys.LEFT)) controls |= State.MOVE_LEFT;
+    if (Gdx.input.isKeyPressed(Input.Keys.RIGHT)) controls |= State.MOVE_RIGHT;
+    if (Gdx.input.isKeyPressed(Input.Keys.PAGE_UP)) controls |= State.ZOOM_IN;
+    if (Gdx.input.isKeyPressed(Input.Keys.PAGE_DOWN)) controls |= State.ZOOM_OUT;
+    if (Gdx.input.isKeyPressed(Input.Keys.A)) controls |= State.PAN_LEFT;
+    if (Gdx.input.isKeyPressed(Input.Keys.D)) controls |= State.PAN_RIGHT;
+    if (Gdx.input.isKeyPressed(Input.Keys.W)) controls |= State.TILT_UP;
+    if (Gdx.input.isKeyPressed(Input.Keys.S)) controls |= State.TILT_DOWN;
+    return controls;
+  }
+
+  // decodes on the store thread, the loaded state replaces the current one on the GL thread in a later render
+  public CompletableFuture<State> loadGame(FileHandle source) {
+    pendingLoad = stateStore.read(source);
+    return pendingLoad;
+  }
+
+  public CompletableFuture<Void> saveGame(FileHandle target) {
+    State latest = new State();
+    simulation.readLatest(latest);
+    State snapshot = latest.snapshot();
+    pendingSave = stateStore.write(snapshot, target);
+    // a mapped map keeps copying changed chunks into its snapshot until that is disposed
+    pendingSave.whenComplete((result, failure) -> snapshot.getMap().dispose());
+    return pendingSave;
+  }
+
+  private void finishBackgroundStore() {
+    if (pendingLoad != null && pendingLoad.isDone()) {
+      try {
+        setState(pendingLoad.join());
+      }
+      catch (CompletionException e) {
+        Gdx.app.error("GameplayScreen", "Failed to load game", e.getCause());
+      }
+      pendingLoad = null;
+    }
+    if (pendingSave != null && pendingSave.isDone()) {
+      try {
+        pendingSave.join();
+      }
+      catch (CompletionException e) {
+        Gdx.app.error("GameplayScreen", "Failed to save game", e.getCause());
+      }
+      pendingSave = null;
+    }
   }
 
+  public boolean isStoreBusy() {
+    return pendingLoad != null || pendingSave != null;
+  }
 
   private class PauseMenu {
     private NinePatch background;
@@ -312,10 +545,23 @@ public class GameplayScreen extends ScreenAdapter {
   private class Controller extends InputAdapter {
     @Override
     public boolean keyTyped(char key) {
-      if (!state.pauseMode && key == 'g') state.showGrid = !state.showGrid;
-      else if (!state.pauseMode && key == 'p') state.pauseMode = true;
-      else if (state.pauseMode && key == ' ') state.pauseMode = false;
+      if (!state.pauseMode && key == 'g') simulation.submit(s -> s.showGrid = !s.showGrid);
+      else if (!state.pauseMode && key == 'p') simulation.submit(s -> s.pauseMode = true);
+      else if (state.pauseMode && key == ' ') simulation.submit(s -> s.pauseMode = false);
       else if (state.pauseMode && key == 'q') Gdx.app.exit();
+      else if (key == '+') simulation.setSpeed(Math.min(simulation.getSpeed() * 2, 8));
+      else if (key == '-') simulation.setSpeed(Math.max(simulation.getSpeed() / 2, 0.25f));
+      else return false;
+      return true;
+    }
+
+    @Override
+    public boolean keyDown(int keycode) {
+      if (keycode == Input.Keys.F3) {
+        showProfile = !showProfile;
+        profiler.setEnabled(showProfile);
+      }
+      else if (keycode == Input.Keys.F4 && profiler.isEnabled()) dumpProfile();
       else return false;
       return true;
     }
@@ -11,6 +11,7 @@ public class HarvestMoon extends Game {
   private SpriteBatch spriteBatch;
   private TextureCache textureCache;
   private AssetManager assetManager;
+  private LoadingScreen loadingScreen;
 
   public static void main(String... args) {
 		Lwjgl3ApplicationConfiguration config = new Lwjgl3ApplicationConfiguration();
@@ -20,10 +21,16 @@ public class HarvestMoon extends Game {
   @Override public void create() {
     modelBatch = new ModelBatch();
     spriteBatch = new SpriteBatch();
-    textureCache = new TextureCache();
     assetManager = new AssetManager();
+    textureCache = new TextureCache(assetManager);
 
     GameMap.Store.setAssetManager(assetManager);
+    AssetManifest.read(Gdx.files.internal("preload.txt")).queue(assetManager, textureCache);
+    loadingScreen = new LoadingScreen(assetManager, this::startGame);
+    setScreen(loadingScreen);
+  }
+
+  private void startGame() {
     GameplayScreen gameplayScreen = new GameplayScreen(modelBatch, spriteBatch, textureCache);
 
     RandomMap rm = new RandomMap(assetManager);
@@ -32,11 +39,20 @@ public class HarvestMoon extends Game {
     GameMap map = rm.generate();
     gameplayScreen.setMap(map);
     setScreen(gameplayScreen);
+    loadingScreen.dispose();
+  }
+
+  // assets requested after the loading screen, like models of a map that were not in the manifest, load in the
+  // background and are picked up once they are in; frames keep coming while they load, also when rendering idles
+  @Override public void render() {
+    if (!assetManager.update()) Gdx.graphics.requestRendering();
+    super.render();
   }
 
   @Override public void dispose() {
     modelBatch.dispose();
     spriteBatch.dispose();
+    loadingScreen.dispose();
     textureCache.dispose();
     assetManager.dispose();
   }
@@ -0,0 +1,81 @@
+package co.rngd.harvest.moon;
+
+// Min/max height quadtree over the cells of a map. Level 0 is the cells themselves and is read straight
+// from the map storage, level k holds the bounds of 2^k x 2^k blocks of cells, the last level is a single node.
+// The levels above the cells are allocated by the first update, so maps that are never picked, like snapshots taken
+// for saving, do not pay for them; until then they read as 0.
+public class HeightPyramid {
+  private final MapStorage storage;
+  private final int width, height;
+  private final int[] rows, columns;
+  private final int[][] min, max;
+
+  public HeightPyramid(MapStorage storage) {
+    this.storage = storage;
+    this.width = storage.width();
+    this.height = storage.height();
+    int levels = 1;
+    while ((1 << (levels - 1)) < width || (1 << (levels - 1)) < height) levels++;
+    rows = new int[levels];
+    columns = new int[levels];
+    min = new int[levels][];
+    max = new int[levels][];
+    for (int level = 0; level < levels; level++) {
+      rows[level] = (height + (1 << level) - 1) >> level;
+      columns[level] = (width + (1 << level) - 1) >> level;
+    }
+  }
+
+  private void allocate() {
+    if (min.length < 2 || min[1] != null) return;
+    for (int level = 1; level < levels(); level++) {
+      min[level] = new int[rows[level] * columns[level]];
+      max[level] = new int[rows[level] * columns[level]];
+    }
+  }
+
+  public int levels() { return rows.length; }
+  public int rows(int level) { return rows[level]; }
+  public int columns(int level) { return columns[level]; }
+
+  public int min(int level, int row, int column) {
+    if (level > 0) return min[level] != null ? min[level][row * columns[level] + column] : 0;
+    return Math.min(Math.min(storage.getHeight(row, column), storage.getHeight(row, column + 1)),
+                    Math.min(storage.getHeight(row + 1, column), storage.getHeight(row + 1, column + 1)));
+  }
+
+  public int max(int level, int row, int column) {
+    if (level > 0) return max[level] != null ? max[level][row * columns[level] + column] : 0;
+    return Math.max(Math.max(storage.getHeight(row, column), storage.getHeight(row, column + 1)),
+                    Math.max(storage.getHeight(row + 1, column), storage.getHeight(row + 1, column + 1)));
+  }
+
+  public void update() {
+    update(0, height, 0, width);
+  }
+
+  // refreshes every node above the cells in [rowFrom, rowTo) x [columnFrom, columnTo)
+  public void update(int rowFrom, int rowTo, int columnFrom, int columnTo) {
+    allocate();
+    for (int level = 1; level < levels(); level++) {
+      rowFrom >>= 1;
+      columnFrom >>= 1;
+      rowTo = (rowTo + 1) >> 1;
+      columnTo = (columnTo + 1) >> 1;
+      for (int row = rowFrom; row < rowTo; row++) {
+        for (int column = columnFrom; column < columnTo; column++) {
+          int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+          int r1 = Math.min(2 * row + 2, rows[level - 1]), c1 = Math.min(2 * column + 2, columns[level - 1]);
+          for (int r = 2 * row; r < r1; r++) {
+            for (int c = 2 * column; c < c1; c++) {
+              lo = Math.min(lo, min(level - 1, r, c));
+              hi = Math.max(hi, max(level - 1, r, c));
+            }
+          }
+          min[level][row * columns[level] + column] = lo;
+          max[level][row * columns[level] + column] = hi;
+        }
+      }
+    }
+  }
+}
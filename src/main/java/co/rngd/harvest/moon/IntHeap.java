@@ -0,0 +1,58 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+
+// Binary min heap of int values ordered by a non-negative int priority, both packed into one long so nothing is
+// boxed. There is no decrease-key: add the value again with the lower priority and skip outdated entries on poll.
+public class IntHeap {
+  private long[] items;
+  private int size;
+  private int lastPriority;
+
+  public IntHeap() { this(64); }
+
+  public IntHeap(int capacity) {
+    items = new long[Math.max(capacity, 2)];
+  }
+
+  public boolean isEmpty() { return size == 0; }
+  public int size() { return size; }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public void add(int priority, int value) {
+    if (size == items.length) items = Arrays.copyOf(items, items.length * 2);
+    long item = (long) priority << 32 | (value & 0xffffffffL);
+    int index = size++;
+    while (index > 0) {
+      int parent = (index - 1) >> 1;
+      if (items[parent] <= item) break;
+      items[index] = items[parent];
+      index = parent;
+    }
+    items[index] = item;
+  }
+
+  // removes the value with the lowest priority, its priority is available from lastPriority
+  public int poll() {
+    if (size == 0) throw new NoSuchElementException();
+    long result = items[0];
+    long item = items[--size];
+    int index = 0;
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) break;
+      if (child + 1 < size && items[child + 1] < items[child]) child++;
+      if (item <= items[child]) break;
+      items[index] = items[child];
+      index = child;
+    }
+    items[index] = item;
+    lastPriority = (int) (result >>> 32);
+    return (int) result;
+  }
+
+  public int lastPriority() { return lastPriority; }
+}
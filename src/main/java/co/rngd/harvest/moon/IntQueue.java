@@ -0,0 +1,44 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+
+public class IntQueue {
+  private int[] items;
+  private int head, size;
+
+  public IntQueue() { this(64); }
+
+  public IntQueue(int capacity) {
+    items = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+  }
+
+  public boolean isEmpty() { return size == 0; }
+  public int size() { return size; }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  public void add(int value) {
+    if (size == items.length) grow();
+    items[(head + size++) & (items.length - 1)] = value;
+  }
+
+  public int poll() {
+    if (size == 0) throw new NoSuchElementException();
+    int result = items[head];
+    head = (head + 1) & (items.length - 1);
+    size--;
+    return result;
+  }
+
+  private void grow() {
+    int[] grown = new int[items.length * 2];
+    int tail = items.length - head;
+    System.arraycopy(items, head, grown, 0, tail);
+    System.arraycopy(items, 0, grown, tail, head);
+    items = grown;
+    head = 0;
+  }
+}
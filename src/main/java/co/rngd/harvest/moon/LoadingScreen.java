@@ -0,0 +1,64 @@
+package co.rngd.harvest.moon;
+
+import com.badlogic.gdx.*;
+import com.badlogic.gdx.assets.*;
+import com.badlogic.gdx.graphics.*;
+import com.badlogic.gdx.graphics.glutils.*;
+import com.badlogic.gdx.math.*;
+
+// Shows the progress of the asset manager while it loads, and runs onLoaded once everything queued is in. Files
+// are read and parsed on the loader thread of the asset manager; each frame only spends up to BUDGET_MILLIS on the
+// parts that need the GL thread, such as uploading textures and meshes, so the window stays responsive.
+public class LoadingScreen extends ScreenAdapter {
+  private static final int BUDGET_MILLIS = 12;
+
+  private final AssetManager assetManager;
+  private final Runnable onLoaded;
+  private ShapeRenderer shapes;
+  private boolean loaded;
+
+  public LoadingScreen(AssetManager assetManager, Runnable onLoaded) {
+    this.assetManager = assetManager;
+    this.onLoaded = onLoaded;
+  }
+
+  @Override
+  public void show() {
+    if (shapes == null) shapes = new ShapeRenderer();
+  }
+
+  @Override
+  public void resize(int width, int height) {
+    if (shapes != null) shapes.setProjectionMatrix(new Matrix4().setToOrtho2D(0, 0, width, height));
+  }
+
+  public float getProgress() { return assetManager.getProgress(); }
+
+  @Override
+  public void render(float delta) {
+    int width = Gdx.graphics.getWidth(), height = Gdx.graphics.getHeight();
+    Gdx.gl.glViewport(0, 0, width, height);
+    Gdx.gl.glClearColor(0, 0, 0, 1);
+    Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+
+    boolean done = assetManager.update(BUDGET_MILLIS);
+    float barWidth = width / 2f, x = (width - barWidth) / 2, y = height / 2f - 5;
+    shapes.begin(ShapeRenderer.ShapeType.Filled);
+    shapes.setColor(0.3f, 0.3f, 0.35f, 1);
+    shapes.rect(x, y, barWidth, 10);
+    shapes.setColor(0.7f, 0.7f, 0.8f, 1);
+    shapes.rect(x, y, barWidth * assetManager.getProgress(), 10);
+    shapes.end();
+
+    if (done && !loaded) {
+      loaded = true;
+      onLoaded.run();
+    }
+  }
+
+  @Override
+  public void dispose() {
+    if (shapes != null) shapes.dispose();
+    shapes = null;
+  }
+}
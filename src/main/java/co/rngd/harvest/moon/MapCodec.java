@@ -0,0 +1,141 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Compact encoding of the map layers. Heights are zigzag varint deltas from the left neighbour, the first vertex of
+// a row is relative to the first vertex of the row above. Objects are varint (run length, object id) pairs.
+public class MapCodec {
+  private byte[] bytes = new byte[4096];
+  private int size, position;
+
+  public byte[] getBytes() { return bytes; }
+  public int size() { return size; }
+
+  public void encode(MapStorage storage) {
+    size = 0;
+    int[] values = new int[storage.width() + 1];
+    int rowStart = 0;
+    for (int row = 0; row <= storage.height(); row++) {
+      storage.getHeights(row, values);
+      int previous = rowStart;
+      for (int column = 0; column <= storage.width(); column++) {
+        int value = values[column];
+        writeVarInt((value - previous) << 1 ^ (value - previous) >> 31);
+        previous = value;
+        if (column == 0) rowStart = value;
+      }
+    }
+
+    int run = 0, runValue = 0;
+    for (int row = 0; row < storage.height(); row++) {
+      storage.getObjects(row, values);
+      for (int column = 0; column < storage.width(); column++) {
+        int value = values[column];
+        if (value != runValue && run > 0) {
+          writeVarInt(run);
+          writeVarInt(runValue);
+          run = 0;
+        }
+        runValue = value;
+        run++;
+      }
+    }
+    if (run > 0) {
+      writeVarInt(run);
+      writeVarInt(runValue);
+    }
+  }
+
+  public void decode(byte[] source, int length, MapStorage storage) throws IOException {
+    bytes = source;
+    size = length;
+    position = 0;
+    int[] values = new int[storage.width() + 1];
+    int rowStart = 0;
+    for (int row = 0; row <= storage.height(); row++) {
+      int previous = rowStart;
+      for (int column = 0; column <= storage.width(); column++) {
+        int zigzag = readVarInt();
+        int value = previous + (zigzag >>> 1 ^ -(zigzag & 1));
+        values[column] = value;
+        previous = value;
+        if (column == 0) rowStart = value;
+      }
+      storage.setHeights(row, values);
+    }
+
+    int run = 0, runValue = 0;
+    for (int row = 0; row < storage.height(); row++) {
+      for (int column = 0; column < storage.width(); column++) {
+        if (run == 0) {
+          run = readVarInt();
+          runValue = readVarInt();
+          if (run <= 0) throw new IOException("Bad object run length: " + run);
+        }
+        values[column] = runValue;
+        run--;
+      }
+      storage.setObjects(row, values);
+    }
+    if (run != 0 || position != size) throw new IOException("Trailing data in map layers");
+  }
+
+  public void deflate() {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(bytes, 0, size);
+    deflater.finish();
+    byte[] result = new byte[Math.max(64, size / 4)];
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == result.length) result = Arrays.copyOf(result, result.length * 2);
+      length += deflater.deflate(result, length, result.length - length);
+    }
+    deflater.end();
+    bytes = result;
+    size = length;
+  }
+
+  public static byte[] inflate(byte[] source, int length, int inflatedLength) throws IOException {
+    Inflater inflater = new Inflater();
+    inflater.setInput(source, 0, length);
+    byte[] result = new byte[inflatedLength];
+    try {
+      int done = 0;
+      while (done < inflatedLength && !inflater.finished()) {
+        int count = inflater.inflate(result, done, inflatedLength - done);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+        done += count;
+      }
+      if (done != inflatedLength) throw new IOException("Truncated map layers");
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupt map layers", e);
+    }
+    finally {
+      inflater.end();
+    }
+    return result;
+  }
+
+  private void writeVarInt(int value) {
+    if (size + 5 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+    while ((value & ~0x7f) != 0) {
+      bytes[size++] = (byte) (value & 0x7f | 0x80);
+      value >>>= 7;
+    }
+    bytes[size++] = (byte) value;
+  }
+
+  private int readVarInt() throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (position >= size) throw new IOException("Truncated map layers");
+      byte b = bytes[position++];
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) return result;
+    }
+    throw new IOException("Malformed varint in map layers");
+  }
+}
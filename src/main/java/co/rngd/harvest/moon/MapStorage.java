@@ -0,0 +1,59 @@
+package co.rngd.harvest.moon;
+
+import com.badlogic.gdx.utils.*;
+
+// Backing store for the heights of the (height + 1) x (width + 1) vertices and the objects of the height x width
+// cells of a map.
+public interface MapStorage extends Disposable {
+  int width();
+  int height();
+
+  int getHeight(int row, int column);
+  void setHeight(int row, int column, int value);
+
+  int getObject(int row, int column);
+  void setObject(int row, int column, int value);
+
+  // bulk access to whole rows, values holds width + 1 heights or width objects
+  default void getHeights(int row, int[] values) {
+    for (int column = 0; column <= width(); column++) values[column] = getHeight(row, column);
+  }
+
+  default void setHeights(int row, int[] values) {
+    for (int column = 0; column <= width(); column++) setHeight(row, column, values[column]);
+  }
+
+  default void getObjects(int row, int[] values) {
+    for (int column = 0; column < width(); column++) values[column] = getObject(row, column);
+  }
+
+  // the objects of the cells from column from up to to, values[0] is column from
+  default void getObjects(int row, int from, int to, int[] values) {
+    for (int column = from; column < to; column++) values[column - from] = getObject(row, column);
+  }
+
+  default void setObjects(int row, int[] values) {
+    for (int column = 0; column < width(); column++) setObject(row, column, values[column]);
+  }
+
+  // an independent in-memory copy, for example to save from another thread
+  default MapStorage copy() {
+    ArrayMapStorage result = new ArrayMapStorage(width(), height());
+    int[] values = new int[width() + 1];
+    for (int row = 0; row <= height(); row++) {
+      getHeights(row, values);
+      result.setHeights(row, values);
+    }
+    for (int row = 0; row < height(); row++) {
+      getObjects(row, values);
+      result.setObjects(row, values);
+    }
+    return result;
+  }
+
+  // hint that only the given cells are going to be used for a while, storage may page out everything else
+  default void retain(int rowFrom, int rowTo, int columnFrom, int columnTo) { }
+
+  @Override
+  default void dispose() { }
+}
@@ -0,0 +1,279 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.badlogic.gdx.files.*;
+
+// Keeps a map in a file of CHUNK_SIZE x CHUNK_SIZE vertex chunks, each holding its heights followed by the objects
+// of the cells whose top left vertex is in the chunk. Chunks are memory mapped when first touched and dropped again
+// by retain, so only the part of the map that is in use takes up memory. Writes and retain belong to the thread that
+// owns the map, reads may come from several threads at once, as path and visibility updates do on their pool; a
+// chunk mapped by one of them is published through an atomic array.
+// copy returns a snapshot that reads the file and only copies a chunk into memory when this storage is about to
+// write to it, so taking one is cheap and it costs memory in proportion to the chunks changed while it is open.
+public class MappedMapStorage implements MapStorage {
+  public static final int CHUNK_SIZE = 256;
+  private static final int SHIFT = 8, MASK = CHUNK_SIZE - 1;
+  private static final int MAGIC = 0x484d4d53, VERSION = 1, HEADER_BYTES = 16;
+  private static final int CHUNK_INTS = 2 * CHUNK_SIZE * CHUNK_SIZE, CHUNK_BYTES = 4 * CHUNK_INTS;
+
+  private final FileHandle file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final int width, height, chunkRows, chunkColumns;
+  private final AtomicReferenceArray<IntBuffer> chunks;
+  private final List<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+
+  public static MappedMapStorage create(FileHandle file, int width, int height) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file.file(), "rw");
+    try {
+      long chunkCount = (long) ((height + CHUNK_SIZE) >> SHIFT) * ((width + CHUNK_SIZE) >> SHIFT);
+      raf.setLength(0);
+      raf.setLength(HEADER_BYTES + chunkCount * CHUNK_BYTES);
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(width);
+      raf.writeInt(height);
+      return new MappedMapStorage(file, raf, width, height);
+    }
+    catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  public static MappedMapStorage open(FileHandle file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file.file(), "rw");
+    try {
+      if (raf.readInt() != MAGIC) throw new IOException("Not a mapped map: " + file);
+      if (raf.readInt() != VERSION) throw new IOException("Mapped map version mismatch: " + file);
+      int width = raf.readInt(), height = raf.readInt();
+      return new MappedMapStorage(file, raf, width, height);
+    }
+    catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  private MappedMapStorage(FileHandle file, RandomAccessFile raf, int width, int height) {
+    this.file = file;
+    this.raf = raf;
+    this.channel = raf.getChannel();
+    this.width = width;
+    this.height = height;
+    this.chunkRows = (height + CHUNK_SIZE) >> SHIFT;
+    this.chunkColumns = (width + CHUNK_SIZE) >> SHIFT;
+    this.chunks = new AtomicReferenceArray<>(chunkRows * chunkColumns);
+  }
+
+  @Override public int width() { return width; }
+  @Override public int height() { return height; }
+
+  @Override
+  public int getHeight(int row, int column) {
+    return chunk(row, column).get(((row & MASK) << SHIFT) + (column & MASK));
+  }
+
+  @Override
+  public void setHeight(int row, int column, int value) {
+    chunkForWrite(row, column).put(((row & MASK) << SHIFT) + (column & MASK), value);
+  }
+
+  @Override
+  public int getObject(int row, int column) {
+    return chunk(row, column).get(CHUNK_SIZE * CHUNK_SIZE + ((row & MASK) << SHIFT) + (column & MASK));
+  }
+
+  @Override
+  public void setObject(int row, int column, int value) {
+    chunkForWrite(row, column).put(CHUNK_SIZE * CHUNK_SIZE + ((row & MASK) << SHIFT) + (column & MASK), value);
+  }
+
+  // Snapshot of the map as it is now, for saving on another thread while this storage keeps changing. Dispose it
+  // when done, until then every first write to a chunk copies the chunk into it.
+  @Override
+  public MapStorage copy() {
+    Snapshot result = new Snapshot();
+    snapshots.add(result);
+    return result;
+  }
+
+  public int mappedChunks() {
+    int result = 0;
+    for (int index = 0; index < chunks.length(); index++) if (chunks.get(index) != null) result++;
+    return result;
+  }
+
+  // mappings are released by the garbage collector once no buffer refers to them anymore
+  @Override
+  public void retain(int rowFrom, int rowTo, int columnFrom, int columnTo) {
+    int r0 = Math.max(rowFrom, 0) >> SHIFT, r1 = Math.min(rowTo, height) >> SHIFT;
+    int c0 = Math.max(columnFrom, 0) >> SHIFT, c1 = Math.min(columnTo, width) >> SHIFT;
+    for (int chunkRow = 0; chunkRow < chunkRows; chunkRow++) {
+      for (int chunkColumn = 0; chunkColumn < chunkColumns; chunkColumn++) {
+        boolean keep = chunkRow >= r0 && chunkRow <= r1 && chunkColumn >= c0 && chunkColumn <= c1;
+        if (!keep) chunks.set(chunkRow * chunkColumns + chunkColumn, null);
+      }
+    }
+  }
+
+  private IntBuffer chunk(int row, int column) {
+    int index = (row >> SHIFT) * chunkColumns + (column >> SHIFT);
+    IntBuffer result = chunks.get(index);
+    if (result != null) return result;
+    // threads that map the same chunk at once all use the mapping stored first, both see the same file either way
+    result = map(index);
+    IntBuffer stored = chunks.compareAndExchange(index, null, result);
+    return stored != null ? stored : result;
+  }
+
+  private IntBuffer chunkForWrite(int row, int column) {
+    IntBuffer result = chunk(row, column);
+    if (!snapshots.isEmpty()) {
+      int index = (row >> SHIFT) * chunkColumns + (column >> SHIFT);
+      for (Snapshot snapshot : snapshots) snapshot.preserve(index, result);
+    }
+    return result;
+  }
+
+  private IntBuffer map(int index) {
+    return map(channel, FileChannel.MapMode.READ_WRITE, index);
+  }
+
+  private IntBuffer map(FileChannel channel, FileChannel.MapMode mode, int index) {
+    try {
+      return channel.map(mode, HEADER_BYTES + (long) index * CHUNK_BYTES, CHUNK_BYTES)
+          .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Failed to map chunk " + index + " of " + file, e);
+    }
+  }
+
+  // Reads chunks from the file until the storage copies them in, just before it first writes to them. The storage
+  // writes on its own thread and the snapshot is read on another one, so copying and reading a chunk from the file
+  // happen under the lock of the snapshot; the write follows the copy, so a read either comes before the copy or
+  // finds it. Writes to the snapshot itself go to copies too. It maps the file read only through its own channel,
+  // so it stays readable when the storage is disposed first.
+  private class Snapshot implements MapStorage {
+    private final RandomAccessFile snapshotFile;
+    private final FileChannel snapshotChannel;
+    private final IntBuffer[] mapped = new IntBuffer[chunks.length()];
+    // guarded by this
+    private final int[][] copies = new int[chunks.length()][];
+    // only used by the thread that writes the storage, to take the lock once per chunk
+    private final boolean[] preserved = new boolean[chunks.length()];
+    private volatile boolean disposed;
+
+    Snapshot() {
+      try {
+        snapshotFile = new RandomAccessFile(file.file(), "r");
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to open " + file, e);
+      }
+      snapshotChannel = snapshotFile.getChannel();
+    }
+
+    void preserve(int index, IntBuffer source) {
+      if (preserved[index] || disposed) return;
+      synchronized (this) {
+        if (copies[index] == null) {
+          int[] copy = new int[CHUNK_INTS];
+          source.duplicate().position(0).get(copy);
+          copies[index] = copy;
+          mapped[index] = null;
+        }
+      }
+      preserved[index] = true;
+    }
+
+    @Override public int width() { return width; }
+    @Override public int height() { return height; }
+
+    @Override public synchronized int getHeight(int row, int column) {
+      return read(index(row, column), ((row & MASK) << SHIFT) + (column & MASK));
+    }
+
+    @Override public synchronized void setHeight(int row, int column, int value) {
+      copy(index(row, column))[((row & MASK) << SHIFT) + (column & MASK)] = value;
+    }
+
+    @Override public synchronized int getObject(int row, int column) {
+      return read(index(row, column), CHUNK_SIZE * CHUNK_SIZE + ((row & MASK) << SHIFT) + (column & MASK));
+    }
+
+    @Override public synchronized void setObject(int row, int column, int value) {
+      copy(index(row, column))[CHUNK_SIZE * CHUNK_SIZE + ((row & MASK) << SHIFT) + (column & MASK)] = value;
+    }
+
+    // rows a chunk at a time, taking the lock once per chunk instead of once per value
+    @Override public void getHeights(int row, int[] values) { readRow(row, 0, width + 1, 0, values); }
+    @Override public void getObjects(int row, int[] values) { readRow(row, 0, width, CHUNK_SIZE * CHUNK_SIZE, values); }
+    @Override public void getObjects(int row, int from, int to, int[] values) {
+      readRow(row, from, to, CHUNK_SIZE * CHUNK_SIZE, values);
+    }
+
+    private void readRow(int row, int from, int to, int base, int[] values) {
+      for (int column = from; column < to; ) {
+        int end = Math.min(to, (column & ~MASK) + CHUNK_SIZE);
+        synchronized (this) {
+          int index = index(row, column);
+          for (; column < end; column++) values[column - from] = read(index, base + ((row & MASK) << SHIFT) + (column & MASK));
+        }
+      }
+    }
+
+    private int index(int row, int column) {
+      return (row >> SHIFT) * chunkColumns + (column >> SHIFT);
+    }
+
+    private int read(int index, int offset) {
+      if (copies[index] != null) return copies[index][offset];
+      if (mapped[index] == null) mapped[index] = map(snapshotChannel, FileChannel.MapMode.READ_ONLY, index);
+      return mapped[index].get(offset);
+    }
+
+    private int[] copy(int index) {
+      if (copies[index] == null) {
+        int[] copy = new int[CHUNK_INTS];
+        for (int offset = 0; offset < CHUNK_INTS; offset++) copy[offset] = read(index, offset);
+        copies[index] = copy;
+        mapped[index] = null;
+      }
+      return copies[index];
+    }
+
+    @Override
+    public void dispose() {
+      disposed = true;
+      snapshots.remove(this);
+      synchronized (this) {
+        Arrays.fill(mapped, null);
+        Arrays.fill(copies, null);
+      }
+      try {
+        snapshotFile.close();
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to close " + file, e);
+      }
+    }
+  }
+
+  @Override
+  public void dispose() {
+    for (int index = 0; index < chunks.length(); index++) chunks.set(index, null);
+    try {
+      raf.close();
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Failed to close " + file, e);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongArray;
+
+// Index over the object layer of a map: per chunk of TILE_SIZE x TILE_SIZE cells a bitmap of the occupied cells and
+// the number of objects of each type, plus a bitmap of the flat cells. Queries skip the chunks that cannot contain
+// what they look for. A chunk is indexed from the storage the first time a query touches it and kept up to date by
+// GameMap.setObject from then on; flat bitmaps are recomputed when terrain edits mark them stale.
+// Cells are returned as row * width + column.
+public class ObjectIndex {
+  public static final int ANY = -1;
+
+  private static final int SIZE = GameMap.TILE_SIZE, WORDS = (SIZE * SIZE + 63) / 64;
+
+  private final MapStorage storage;
+  private final int width, height, chunkRows, chunkColumns, types;
+  private final long[][] occupied, flat;
+  private final int[][] counts;
+  // free flat cells per chunk, -1 when the flat bitmap is stale
+  private final int[] freeFlat;
+  private final LongArray candidates = new LongArray();
+
+  public ObjectIndex(MapStorage storage, int types) {
+    this.storage = storage;
+    this.width = storage.width();
+    this.height = storage.height();
+    this.types = types;
+    this.chunkRows = (height + SIZE - 1) / SIZE;
+    this.chunkColumns = (width + SIZE - 1) / SIZE;
+    this.occupied = new long[chunkRows * chunkColumns][];
+    this.flat = new long[chunkRows * chunkColumns][];
+    this.counts = new int[chunkRows * chunkColumns][];
+    this.freeFlat = new int[chunkRows * chunkColumns];
+    Arrays.fill(freeFlat, -1);
+  }
+
+  // called with the value the cell had before, after the storage has been updated
+  synchronized void set(int row, int column, int before, int after) {
+    int chunk = chunk(row, column);
+    if (occupied[chunk] == null || before == after) return;
+    int bit = bit(row, column);
+    counts[chunk][before]--;
+    counts[chunk][after]++;
+    if (after != 0) occupied[chunk][bit >> 6] |= 1L << bit;
+    else occupied[chunk][bit >> 6] &= ~(1L << bit);
+    if (freeFlat[chunk] >= 0 && (flat[chunk][bit >> 6] & 1L << bit) != 0 && (before == 0) != (after == 0))
+      freeFlat[chunk] += after == 0 ? 1 : -1;
+  }
+
+  synchronized void invalidateFlat(int chunk) {
+    freeFlat[chunk] = -1;
+  }
+
+  synchronized void invalidateFlat() {
+    Arrays.fill(freeFlat, -1);
+  }
+
+  // objects of the type (or ANY) in the cells [rowFrom, rowTo) x [columnFrom, columnTo), returns how many were added
+  public synchronized int query(int rowFrom, int columnFrom, int rowTo, int columnTo, int type, IntArray out) {
+    rowFrom = Math.max(rowFrom, 0);
+    columnFrom = Math.max(columnFrom, 0);
+    rowTo = Math.min(rowTo, height);
+    columnTo = Math.min(columnTo, width);
+    int found = 0;
+    if (rowFrom >= rowTo || columnFrom >= columnTo) return 0;
+    for (int chunkRow = rowFrom / SIZE; chunkRow <= (rowTo - 1) / SIZE; chunkRow++) {
+      for (int chunkColumn = columnFrom / SIZE; chunkColumn <= (columnTo - 1) / SIZE; chunkColumn++) {
+        int chunk = chunkRow * chunkColumns + chunkColumn;
+        if (count(chunk, type) == 0) continue;
+        long[] bits = occupied[chunk];
+        int rowBase = chunkRow * SIZE, columnBase = chunkColumn * SIZE;
+        int r0 = Math.max(rowFrom, rowBase), r1 = Math.min(rowTo, rowBase + SIZE);
+        int c0 = Math.max(columnFrom, columnBase) - columnBase, c1 = Math.min(columnTo, columnBase + SIZE) - columnBase;
+        // the bits of a row of the chunk are consecutive, only the words that overlap [c0, c1) are looked at
+        for (int row = r0; row < r1; row++) {
+          int from = (row - rowBase) * SIZE + c0, to = (row - rowBase) * SIZE + c1;
+          for (int word = from >> 6; word <= (to - 1) >> 6; word++) {
+            long w = bits[word];
+            if (word == from >> 6) w &= -1L << (from & 63);
+            if (word == (to - 1) >> 6) w &= -1L >>> (63 - ((to - 1) & 63));
+            for (; w != 0; w &= w - 1) {
+              int column = columnBase + word * 64 + Long.numberOfTrailingZeros(w) - (row - rowBase) * SIZE;
+              if (type != ANY && storage.getObject(row, column) != type) continue;
+              out.add(row * width + column);
+              found++;
+            }
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  // objects of the type (or ANY) at most radius cells away from (row, column)
+  public synchronized int queryRadius(int row, int column, int radius, int type, IntArray out) {
+    int start = out.size;
+    query(row - radius, column - radius, row + radius + 1, column + radius + 1, type, out);
+    int kept = start;
+    for (int i = start; i < out.size; i++) {
+      int cell = out.get(i), dr = cell / width - row, dc = cell % width - column;
+      if (dr * dr + dc * dc <= radius * radius) out.set(kept++, cell);
+    }
+    out.size = kept;
+    return kept - start;
+  }
+
+  // the k objects of the type (or ANY) closest to (row, column), nearest first; searches rings of chunks around the
+  // start until no cell outside the searched square can beat the k-th candidate
+  public synchronized int nearest(int row, int column, int type, int k, IntArray out) {
+    candidates.clear();
+    if (k <= 0) return 0;
+    int chunkRow = row / SIZE, chunkColumn = column / SIZE;
+    for (int ring = 0; ; ring++) {
+      int r0 = chunkRow - ring, r1 = chunkRow + ring, c0 = chunkColumn - ring, c1 = chunkColumn + ring;
+      for (int r = Math.max(r0, 0); r <= Math.min(r1, chunkRows - 1); r++) {
+        for (int c = Math.max(c0, 0); c <= Math.min(c1, chunkColumns - 1); c++) {
+          if (r != r0 && r != r1 && c != c0 && c != c1) continue;
+          addCandidates(r * chunkColumns + c, row, column, type);
+        }
+      }
+      boolean covered = r0 <= 0 && c0 <= 0 && r1 >= chunkRows - 1 && c1 >= chunkColumns - 1;
+      if (candidates.size >= k || covered) {
+        candidates.sort();
+        candidates.size = Math.min(candidates.size, k);
+        long outside = Math.min(Math.min(row - r0 * SIZE + 1, (r1 + 1) * SIZE - row),
+                                Math.min(column - c0 * SIZE + 1, (c1 + 1) * SIZE - column));
+        if (covered || candidates.size == k && candidates.peek() >>> 32 <= outside * outside) break;
+      }
+    }
+    for (int i = 0; i < candidates.size; i++) out.add((int) candidates.get(i));
+    return candidates.size;
+  }
+
+  private void addCandidates(int chunk, int row, int column, int type) {
+    if (count(chunk, type) == 0) return;
+    long[] bits = occupied[chunk];
+    int rowBase = (chunk / chunkColumns) * SIZE, columnBase = (chunk % chunkColumns) * SIZE;
+    for (int word = 0; word < WORDS; word++) {
+      for (long w = bits[word]; w != 0; w &= w - 1) {
+        int bit = word * 64 + Long.numberOfTrailingZeros(w);
+        int r = rowBase + bit / SIZE, c = columnBase + bit % SIZE;
+        if (type != ANY && storage.getObject(r, c) != type) continue;
+        long distance = (long) (r - row) * (r - row) + (long) (c - column) * (c - column);
+        candidates.add(distance << 32 | (r * width + c));
+      }
+    }
+  }
+
+  // a uniformly chosen flat cell without an object, -1 if there is none
+  public synchronized int randomFreeFlatCell(Random random) {
+    long total = 0;
+    for (int chunk = 0; chunk < freeFlat.length; chunk++) total += freeFlat(chunk);
+    if (total == 0) return -1;
+    long pick = (long) (random.nextDouble() * total);
+    int chunk = 0;
+    while (pick >= freeFlat[chunk]) pick -= freeFlat[chunk++];
+    long[] flatBits = flat[chunk], occupiedBits = occupied[chunk];
+    for (int word = 0; ; word++) {
+      long free = flatBits[word] & ~occupiedBits[word];
+      int n = Long.bitCount(free);
+      if (pick >= n) {
+        pick -= n;
+        continue;
+      }
+      for (; pick > 0; pick--) free &= free - 1;
+      int bit = word * 64 + Long.numberOfTrailingZeros(free);
+      return ((chunk / chunkColumns) * SIZE + bit / SIZE) * width + (chunk % chunkColumns) * SIZE + bit % SIZE;
+    }
+  }
+
+  private int count(int chunk, int type) {
+    if (occupied[chunk] == null) index(chunk);
+    if (type != ANY) return counts[chunk][type];
+    return SIZE * SIZE - counts[chunk][0];
+  }
+
+  private int freeFlat(int chunk) {
+    if (occupied[chunk] == null) index(chunk);
+    if (freeFlat[chunk] >= 0) return freeFlat[chunk];
+    long[] bits = flat[chunk];
+    Arrays.fill(bits, 0);
+    int rowBase = (chunk / chunkColumns) * SIZE, columnBase = (chunk % chunkColumns) * SIZE;
+    int rowTo = Math.min(rowBase + SIZE, height), columnTo = Math.min(columnBase + SIZE, width);
+    for (int row = rowBase; row < rowTo; row++) {
+      for (int column = columnBase; column < columnTo; column++) {
+        int h = storage.getHeight(row, column);
+        if (h != storage.getHeight(row, column + 1) || h != storage.getHeight(row + 1, column) ||
+            h != storage.getHeight(row + 1, column + 1)) continue;
+        int bit = bit(row, column);
+        bits[bit >> 6] |= 1L << bit;
+      }
+    }
+    int result = 0;
+    for (int word = 0; word < WORDS; word++) result += Long.bitCount(bits[word] & ~occupied[chunk][word]);
+    return freeFlat[chunk] = result;
+  }
+
+  // cells outside the map, in the last chunks of a row or column, count as empty; only reads the cells of the chunk,
+  // so a mapped storage only maps the chunks that are queried
+  private void index(int chunk) {
+    long[] bits = new long[WORDS];
+    int[] count = new int[types];
+    int rowBase = (chunk / chunkColumns) * SIZE, columnBase = (chunk % chunkColumns) * SIZE;
+    int rowTo = Math.min(rowBase + SIZE, height), columnTo = Math.min(columnBase + SIZE, width);
+    int[] values = new int[SIZE];
+    for (int row = rowBase; row < rowTo; row++) {
+      storage.getObjects(row, columnBase, columnTo, values);
+      for (int column = columnBase; column < columnTo; column++) {
+        int value = values[column - columnBase];
+        count[value]++;
+        if (value == 0) continue;
+        int bit = bit(row, column);
+        bits[bit >> 6] |= 1L << bit;
+      }
+    }
+    count[0] += SIZE * SIZE - (rowTo - rowBase) * (columnTo - columnBase);
+    counts[chunk] = count;
+    flat[chunk] = new long[WORDS];
+    freeFlat[chunk] = -1;
+    occupied[chunk] = bits;
+  }
+
+  private int chunk(int row, int column) {
+    return (row / SIZE) * chunkColumns + column / SIZE;
+  }
+
+  private static int bit(int row, int column) {
+    return (row % SIZE) * SIZE + column % SIZE;
+  }
+}
@@ -0,0 +1,73 @@
+package co.rngd.harvest.moon;
+
+import com.badlogic.gdx.graphics.*;
+import com.badlogic.gdx.graphics.g3d.*;
+import com.badlogic.gdx.graphics.g3d.model.*;
+import com.badlogic.gdx.graphics.g3d.utils.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.utils.*;
+
+// The parts of an object model copied out of its meshes, so many copies of the object can be merged into the
+// parts of one model: one part per material instead of one renderable per object and material.
+public class ObjectMesh {
+  // keeps every merged part well below the 16 bit index limit of a mesh
+  private static final int MAX_PART_VERTICES = 16 * 1024;
+
+  private static class Part {
+    final String id;
+    final VertexAttributes attributes;
+    final int primitiveType;
+    final Material material;
+    final Matrix4 transform;
+    final float[] vertices;
+    final short[] indices;
+    final int vertexCount;
+
+    Part(String id, NodePart nodePart, Matrix4 transform) {
+      MeshPart meshPart = nodePart.meshPart;
+      Mesh mesh = meshPart.mesh;
+      this.id = id;
+      this.attributes = mesh.getVertexAttributes();
+      this.primitiveType = meshPart.primitiveType;
+      this.material = nodePart.material;
+      this.transform = new Matrix4(transform);
+      this.vertices = new float[mesh.getNumVertices() * attributes.vertexSize / 4];
+      mesh.getVertices(vertices);
+      this.indices = new short[meshPart.size];
+      mesh.getIndices(meshPart.offset, meshPart.size, indices, 0);
+      IntSet used = new IntSet();
+      for (short index : indices) used.add(index & 0xffff);
+      this.vertexCount = used.size;
+    }
+  }
+
+  private final Array<Part> parts = new Array<>();
+  private final Matrix4 transform = new Matrix4();
+
+  public ObjectMesh(Model model) {
+    for (Node node : model.nodes) addParts(node);
+  }
+
+  private void addParts(Node node) {
+    for (NodePart nodePart : node.parts)
+      parts.add(new Part(node.id + "_" + nodePart.meshPart.id, nodePart, node.globalTransform));
+    for (Node child : node.getChildren()) addParts(child);
+  }
+
+  // adds a copy of the object at each of the count positions (x, y, z triples) to the model being built
+  public void build(ModelBuilder modelBuilder, String prefix, float[] positions, int count) {
+    for (Part part : parts) {
+      MeshPartBuilder builder = null;
+      int vertices = 0, piece = 0;
+      for (int i = 0; i < count; i++) {
+        if (builder == null || vertices + part.vertexCount > MAX_PART_VERTICES) {
+          builder = modelBuilder.part(prefix + part.id + "_" + piece++, part.primitiveType, part.attributes, part.material);
+          vertices = 0;
+        }
+        builder.setVertexTransform(transform.setToTranslation(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]).mul(part.transform));
+        builder.addMesh(part.vertices, part.indices, 0, part.indices.length);
+        vertices += part.vertexCount;
+      }
+    }
+  }
+}
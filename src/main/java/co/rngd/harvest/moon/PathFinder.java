@@ -0,0 +1,490 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongMap;
+
+// Hierarchical A* over the cells of a map. The map is split into clusters of TILE_SIZE x TILE_SIZE cells, the same
+// as its chunks. Where a run of walkable cells crosses the border of two clusters there are one or two transitions,
+// pairs of cells facing each other; the cells of the transitions of a cluster are its nodes, and the costs between
+// the nodes of a cluster are precomputed. A path is searched over the nodes first and then refined by searches
+// inside single clusters.
+// Cells with an object are blocked, as are cells whose corners differ by more than maxSlope. Moves go to the eight
+// neighbours, diagonals only when both cells next to the diagonal are walkable, and climbing or descending costs
+// extra, so paths go around hills when that is not too far. Paths are cells from start to goal as
+// row * width + column; they are cached until a chunk they cross changes.
+// update rebuilds the clusters whose chunks changed; it must not run concurrently with edits of the map or with
+// path searches.
+public class PathFinder {
+  private static final int SIZE = GameMap.TILE_SIZE, WORDS = (SIZE * SIZE + 63) / 64;
+  private static final int STRAIGHT = 10, DIAGONAL = 14, CLIMB = 5;
+  private static final int MAX_CACHED = 4096;
+  private static final int[] EMPTY = new int[0];
+  private static final int[] DIRECTION_ROWS = { -1, 1, 0, 0, -1, -1, 1, 1 };
+  private static final int[] DIRECTION_COLUMNS = { 0, 0, -1, 1, -1, 1, -1, 1 };
+
+  public static class Request {
+    public final int startRow, startColumn, goalRow, goalColumn;
+    // filled in by findPaths, null when the goal cannot be reached
+    public int[] path;
+
+    public Request(int startRow, int startColumn, int goalRow, int goalColumn) {
+      this.startRow = startRow;
+      this.startColumn = startColumn;
+      this.goalRow = goalRow;
+      this.goalColumn = goalColumn;
+    }
+  }
+
+  private static class Cluster {
+    final int rowFrom, columnFrom, rowTo, columnTo;
+    final long[] walkable = new long[WORDS];
+    // corner heights summed, so the climb between two cells needs no division
+    final int[] levels = new int[SIZE * SIZE];
+    // the same cell is a node once per transition it is part of, partners are the cells across the border
+    int[] nodes = EMPTY, partners = EMPTY;
+    // the distinct node cells, so searches for the costs to the nodes can stop once they have all been reached
+    final long[] nodeBits = new long[WORDS];
+    int nodeCells;
+    // cost from node i to node j at i * nodes.length + j, -1 if j cannot be reached inside the cluster
+    int[] costs = EMPTY;
+    // ids of the nodes in the graph over all clusters are base + i, the partner of node i is partnerIds[i]
+    int base;
+    int[] partnerIds = EMPTY;
+    int version = -1;
+
+    Cluster(int rowFrom, int columnFrom, int rowTo, int columnTo) {
+      this.rowFrom = rowFrom;
+      this.columnFrom = columnFrom;
+      this.rowTo = rowTo;
+      this.columnTo = columnTo;
+    }
+  }
+
+  private static class CachedPath {
+    final int[] path, clusters;
+
+    CachedPath(int[] path, int[] clusters) {
+      this.path = path;
+      this.clusters = clusters;
+    }
+  }
+
+  // scratch space of the searches of one thread; cluster searches index cells relative to the cluster, node
+  // searches index node ids
+  private static class Search {
+    final int[] g = new int[SIZE * SIZE], parent = new int[SIZE * SIZE], stamp = new int[SIZE * SIZE];
+    int[] nodeG = EMPTY, nodeParent = EMPTY, nodeStamp = EMPTY;
+    final IntHeap open = new IntHeap(256);
+    final IntArray nodePath = new IntArray(), path = new IntArray();
+    int generation, nodeGeneration;
+
+    void ensureNodes(int count) {
+      if (nodeG.length >= count) return;
+      nodeG = new int[count];
+      nodeParent = new int[count];
+      nodeStamp = new int[count];
+      nodeGeneration = 0;
+    }
+  }
+
+  private final GameMap map;
+  private final ForkJoinPool pool;
+  private final int maxSlope;
+  private final int width, height, clusterRows, clusterColumns;
+  private final Cluster[] clusters;
+  // transitions across the border below and the border right of each cluster, pairs of cells inside it first
+  private final int[][] bottomBorders, rightBorders;
+  // cluster of each node id
+  private int[] nodeClusters = EMPTY;
+  private final LongMap<CachedPath> cache = new LongMap<>();
+  private final ThreadLocal<Search> searches = ThreadLocal.withInitial(Search::new);
+
+  public PathFinder(GameMap map) {
+    this(map, 1, ForkJoinPool.commonPool());
+  }
+
+  public PathFinder(GameMap map, int maxSlope, ForkJoinPool pool) {
+    this.map = map;
+    this.pool = pool;
+    this.maxSlope = maxSlope;
+    this.width = map.width;
+    this.height = map.height;
+    this.clusterRows = map.chunkRows();
+    this.clusterColumns = map.chunkColumns();
+    this.clusters = new Cluster[clusterRows * clusterColumns];
+    for (int cluster = 0; cluster < clusters.length; cluster++) {
+      int rowFrom = (cluster / clusterColumns) * SIZE, columnFrom = (cluster % clusterColumns) * SIZE;
+      clusters[cluster] = new Cluster(rowFrom, columnFrom, Math.min(rowFrom + SIZE, height), Math.min(columnFrom + SIZE, width));
+    }
+    this.bottomBorders = new int[clusters.length][];
+    this.rightBorders = new int[clusters.length][];
+    update();
+  }
+
+  // rebuilds the clusters whose chunks changed since the last update and drops the cached paths that cross them
+  public void update() {
+    BitSet changed = new BitSet(clusters.length);
+    for (int cluster = 0; cluster < clusters.length; cluster++) {
+      int version = map.getChunkVersion(cluster);
+      if (clusters[cluster].version == version) continue;
+      clusters[cluster].version = version;
+      changed.set(cluster);
+    }
+    if (changed.isEmpty()) return;
+    int[] changedClusters = changed.stream().toArray();
+    pool.submit(() -> Arrays.stream(changedClusters).parallel().forEach(this::updateWalkable)).join();
+
+    // transitions on the four borders of a changed cluster, and with them the nodes of its neighbours, change too
+    BitSet affected = new BitSet(clusters.length);
+    for (int cluster = changed.nextSetBit(0); cluster >= 0; cluster = changed.nextSetBit(cluster + 1)) {
+      int row = cluster / clusterColumns, column = cluster % clusterColumns;
+      affected.set(cluster);
+      bottomBorders[cluster] = transitions(cluster, false);
+      rightBorders[cluster] = transitions(cluster, true);
+      if (row > 0) {
+        bottomBorders[cluster - clusterColumns] = transitions(cluster - clusterColumns, false);
+        affected.set(cluster - clusterColumns);
+      }
+      if (column > 0) {
+        rightBorders[cluster - 1] = transitions(cluster - 1, true);
+        affected.set(cluster - 1);
+      }
+      if (row < clusterRows - 1) affected.set(cluster + clusterColumns);
+      if (column < clusterColumns - 1) affected.set(cluster + 1);
+    }
+    int[] affectedClusters = affected.stream().toArray();
+    pool.submit(() -> Arrays.stream(affectedClusters).parallel().forEach(this::updateNodes)).join();
+    linkNodes();
+
+    synchronized (cache) {
+      for (Iterator<LongMap.Entry<CachedPath>> entries = cache.entries().iterator(); entries.hasNext(); ) {
+        for (int cluster : entries.next().value.clusters) {
+          if (!changed.get(cluster)) continue;
+          entries.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  // runs the requests on the pool and returns when all of them have their path
+  public void findPaths(List<Request> requests) {
+    pool.submit(() -> requests.parallelStream().forEach(request ->
+        request.path = findPath(request.startRow, request.startColumn, request.goalRow, request.goalColumn))).join();
+  }
+
+  // cells from start to goal, null when the goal cannot be reached; the array is shared with the cache
+  public int[] findPath(int startRow, int startColumn, int goalRow, int goalColumn) {
+    if (startRow < 0 || startRow >= height || startColumn < 0 || startColumn >= width ||
+        goalRow < 0 || goalRow >= height || goalColumn < 0 || goalColumn >= width)
+      throw new IllegalArgumentException("Path outside the map: " + startRow + "," + startColumn + " to " + goalRow + "," + goalColumn);
+    int start = startRow * width + startColumn, goal = goalRow * width + goalColumn;
+    long key = (long) start << 32 | goal;
+    synchronized (cache) {
+      CachedPath cached = cache.get(key);
+      if (cached != null) return cached.path;
+    }
+    if (!walkable(startRow, startColumn) || !walkable(goalRow, goalColumn)) return null;
+    int[] path = search(searches.get(), start, goal);
+    if (path == null) return null;
+    synchronized (cache) {
+      if (cache.size >= MAX_CACHED) cache.clear();
+      cache.put(key, new CachedPath(path, crossedClusters(path)));
+    }
+    return path;
+  }
+
+  private int[] search(Search s, int start, int goal) {
+    Cluster first = cluster(start), last = cluster(goal);
+    s.path.clear();
+    s.path.add(start);
+    if (first == last && searchCluster(s, first, start, goal) >= 0) {
+      appendPath(s, first, start, goal);
+      return s.path.toArray();
+    }
+    int[] startCosts = nodeCosts(s, first, start), goalCosts = nodeCosts(s, last, goal);
+
+    // start and goal join the graph as the two ids after the nodes
+    int startId = nodeClusters.length, goalId = startId + 1;
+    s.ensureNodes(goalId + 1);
+    int generation = ++s.nodeGeneration;
+    IntHeap open = s.open;
+    open.clear();
+    s.nodeStamp[startId] = generation;
+    s.nodeG[startId] = 0;
+    open.add(estimate(start, goal), startId);
+    boolean found = false;
+    while (!open.isEmpty()) {
+      int id = open.poll(), cost = s.nodeG[id];
+      if (open.lastPriority() > cost + estimate(cell(id, start, goal), goal)) continue;
+      if (id == goalId) {
+        found = true;
+        break;
+      }
+      if (id == startId) {
+        for (int j = 0; j < first.nodes.length; j++)
+          if (startCosts[j] >= 0) relax(s, id, first.base + j, cost + startCosts[j], first.nodes[j], goal);
+        continue;
+      }
+      Cluster cluster = clusters[nodeClusters[id]];
+      int i = id - cluster.base, n = cluster.nodes.length, cell = cluster.nodes[i];
+      relax(s, id, cluster.partnerIds[i], cost + crossingCost(cell, cluster.partners[i]), cluster.partners[i], goal);
+      for (int j = 0; j < n; j++)
+        if (j != i && cluster.costs[i * n + j] >= 0) relax(s, id, cluster.base + j, cost + cluster.costs[i * n + j], cluster.nodes[j], goal);
+      if (cluster == last && goalCosts[i] >= 0) relax(s, id, goalId, cost + goalCosts[i], goal, goal);
+    }
+    if (!found) return null;
+
+    s.nodePath.clear();
+    for (int id = goalId; id != startId; id = s.nodeParent[id]) s.nodePath.add(cell(id, start, goal));
+    s.nodePath.add(start);
+    s.nodePath.reverse();
+    for (int i = 1; i < s.nodePath.size; i++) {
+      int from = s.nodePath.get(i - 1), to = s.nodePath.get(i);
+      Cluster cluster = cluster(from);
+      if (cluster != cluster(to)) s.path.add(to);
+      else if (from != to) {
+        searchCluster(s, cluster, from, to);
+        appendPath(s, cluster, from, to);
+      }
+    }
+    return s.path.toArray();
+  }
+
+  private void relax(Search s, int from, int to, int cost, int cell, int goal) {
+    if (s.nodeStamp[to] == s.nodeGeneration && s.nodeG[to] <= cost) return;
+    s.nodeStamp[to] = s.nodeGeneration;
+    s.nodeG[to] = cost;
+    s.nodeParent[to] = from;
+    s.open.add(cost + estimate(cell, goal), to);
+  }
+
+  private int cell(int id, int start, int goal) {
+    if (id >= nodeClusters.length) return id == nodeClusters.length ? start : goal;
+    Cluster cluster = clusters[nodeClusters[id]];
+    return cluster.nodes[id - cluster.base];
+  }
+
+  // costs from cell to the nodes of its cluster, -1 for nodes it cannot reach
+  private int[] nodeCosts(Search s, Cluster cluster, int cell) {
+    searchCluster(s, cluster, cell, -1);
+    int[] result = new int[cluster.nodes.length];
+    for (int i = 0; i < result.length; i++) result[i] = reached(s, cluster, cluster.nodes[i]);
+    return result;
+  }
+
+  // A* from start to goal inside the cluster, or for goal -1 Dijkstra until all nodes of the cluster have their
+  // cost; returns the cost of the goal, -1 if it cannot be reached
+  private int searchCluster(Search s, Cluster cluster, int start, int goal) {
+    int generation = ++s.generation;
+    int rows = cluster.rowTo - cluster.rowFrom, columns = cluster.columnTo - cluster.columnFrom;
+    long[] walkable = cluster.walkable;
+    int[] levels = cluster.levels;
+    int target = goal < 0 ? -1 : local(cluster, goal), targetRow = target / SIZE, targetColumn = target % SIZE;
+    IntHeap open = s.open;
+    open.clear();
+    int first = local(cluster, start);
+    s.stamp[first] = generation;
+    s.g[first] = 0;
+    s.parent[first] = -1;
+    open.add(0, first);
+    int remaining = cluster.nodeCells;
+    while (!open.isEmpty()) {
+      int current = open.poll(), row = current / SIZE, column = current % SIZE;
+      int g = s.g[current];
+      int h = target < 0 ? 0 : octile(Math.abs(row - targetRow), Math.abs(column - targetColumn));
+      if (open.lastPriority() > g + h) continue;
+      if (current == target) return g;
+      if (target < 0 && isSet(cluster.nodeBits, current) && --remaining == 0) return 0;
+      for (int direction = 0; direction < 8; direction++) {
+        int r = row + DIRECTION_ROWS[direction], c = column + DIRECTION_COLUMNS[direction];
+        if (r < 0 || r >= rows || c < 0 || c >= columns) continue;
+        int next = r * SIZE + c;
+        if (!isSet(walkable, next)) continue;
+        boolean diagonal = direction >= 4;
+        if (diagonal && (!isSet(walkable, row * SIZE + c) || !isSet(walkable, r * SIZE + column))) continue;
+        int cost = g + (diagonal ? DIAGONAL : STRAIGHT) + CLIMB * Math.abs(levels[next] - levels[current]);
+        if (s.stamp[next] == generation && s.g[next] <= cost) continue;
+        s.stamp[next] = generation;
+        s.g[next] = cost;
+        s.parent[next] = current;
+        open.add(target < 0 ? cost : cost + octile(Math.abs(r - targetRow), Math.abs(c - targetColumn)), next);
+      }
+    }
+    return goal < 0 ? 0 : -1;
+  }
+
+  private int reached(Search s, Cluster cluster, int cell) {
+    int local = local(cluster, cell);
+    return s.stamp[local] == s.generation ? s.g[local] : -1;
+  }
+
+  // appends the cells after from up to to, found by the last searchCluster
+  private void appendPath(Search s, Cluster cluster, int from, int to) {
+    int mark = s.path.size;
+    for (int local = local(cluster, to); local != local(cluster, from); local = s.parent[local])
+      s.path.add((cluster.rowFrom + local / SIZE) * width + cluster.columnFrom + local % SIZE);
+    int[] items = s.path.items;
+    for (int i = mark, j = s.path.size - 1; i < j; i++, j--) {
+      int swap = items[i];
+      items[i] = items[j];
+      items[j] = swap;
+    }
+  }
+
+  private void updateWalkable(int index) {
+    Cluster cluster = clusters[index];
+    Arrays.fill(cluster.walkable, 0);
+    for (int row = cluster.rowFrom; row < cluster.rowTo; row++) {
+      for (int column = cluster.columnFrom; column < cluster.columnTo; column++) {
+        int h00 = map.height(row, column), h01 = map.height(row, column + 1);
+        int h10 = map.height(row + 1, column), h11 = map.height(row + 1, column + 1);
+        int bit = (row - cluster.rowFrom) * SIZE + column - cluster.columnFrom;
+        cluster.levels[bit] = h00 + h01 + h10 + h11;
+        if (map.getObjectId(row, column) != 0) continue;
+        int low = Math.min(Math.min(h00, h01), Math.min(h10, h11)), high = Math.max(Math.max(h00, h01), Math.max(h10, h11));
+        if (high - low > maxSlope) continue;
+        cluster.walkable[bit >> 6] |= 1L << bit;
+      }
+    }
+  }
+
+  // pairs of cells facing each other across the border below or right of the cluster: one in the middle of every
+  // run of open border cells, or one at each end of runs of six or more
+  private int[] transitions(int index, boolean right) {
+    Cluster cluster = clusters[index];
+    if (right ? cluster.columnTo >= width : cluster.rowTo >= height) return EMPTY;
+    IntArray result = new IntArray();
+    int from = right ? cluster.rowFrom : cluster.columnFrom, to = right ? cluster.rowTo : cluster.columnTo;
+    int runStart = -1;
+    for (int i = from; i <= to; i++) {
+      boolean open = i < to && (right ? walkable(i, cluster.columnTo - 1) && walkable(i, cluster.columnTo)
+                                      : walkable(cluster.rowTo - 1, i) && walkable(cluster.rowTo, i));
+      if (open && runStart < 0) runStart = i;
+      if (open || runStart < 0) continue;
+      int runEnd = i - 1;
+      if (runEnd - runStart + 1 < 6) addTransition(result, (runStart + runEnd) / 2, cluster, right);
+      else {
+        addTransition(result, runStart, cluster, right);
+        addTransition(result, runEnd, cluster, right);
+      }
+      runStart = -1;
+    }
+    return result.toArray();
+  }
+
+  private void addTransition(IntArray result, int i, Cluster cluster, boolean right) {
+    if (right) {
+      result.add(i * width + cluster.columnTo - 1);
+      result.add(i * width + cluster.columnTo);
+    }
+    else {
+      result.add((cluster.rowTo - 1) * width + i);
+      result.add(cluster.rowTo * width + i);
+    }
+  }
+
+  private void updateNodes(int index) {
+    Cluster cluster = clusters[index];
+    IntArray nodes = new IntArray(), partners = new IntArray();
+    addNodes(nodes, partners, bottomBorders[index], 0);
+    addNodes(nodes, partners, rightBorders[index], 0);
+    if (index >= clusterColumns) addNodes(nodes, partners, bottomBorders[index - clusterColumns], 1);
+    if (index % clusterColumns > 0) addNodes(nodes, partners, rightBorders[index - 1], 1);
+    int n = nodes.size;
+    Arrays.fill(cluster.nodeBits, 0);
+    cluster.nodeCells = 0;
+    for (int i = 0; i < n; i++) {
+      int bit = local(cluster, nodes.get(i));
+      if (isSet(cluster.nodeBits, bit)) continue;
+      cluster.nodeBits[bit >> 6] |= 1L << bit;
+      cluster.nodeCells++;
+    }
+    int[] costs = new int[n * n];
+    Search s = searches.get();
+    cluster.nodes = nodes.toArray();
+    for (int i = 0; i < n; i++) {
+      int same = nodes.indexOf(nodes.get(i));
+      if (same < i) System.arraycopy(costs, same * n, costs, i * n, n);
+      else {
+        searchCluster(s, cluster, nodes.get(i), -1);
+        for (int j = 0; j < n; j++) costs[i * n + j] = reached(s, cluster, nodes.get(j));
+      }
+    }
+    cluster.partners = partners.toArray();
+    cluster.costs = costs;
+  }
+
+  // numbers the nodes of all clusters and finds the partner of every node in the cluster across the border
+  private void linkNodes() {
+    int count = 0;
+    for (Cluster cluster : clusters) {
+      cluster.base = count;
+      count += cluster.nodes.length;
+    }
+    int[] owners = new int[count];
+    for (int index = 0; index < clusters.length; index++) {
+      Cluster cluster = clusters[index];
+      Arrays.fill(owners, cluster.base, cluster.base + cluster.nodes.length, index);
+      int[] partnerIds = new int[cluster.nodes.length];
+      for (int i = 0; i < partnerIds.length; i++) {
+        Cluster other = cluster(cluster.partners[i]);
+        int j = 0;
+        while (other.nodes[j] != cluster.partners[i] || other.partners[j] != cluster.nodes[i]) j++;
+        partnerIds[i] = other.base + j;
+      }
+      cluster.partnerIds = partnerIds;
+    }
+    nodeClusters = owners;
+  }
+
+  private static void addNodes(IntArray nodes, IntArray partners, int[] transitions, int side) {
+    for (int i = 0; i < transitions.length; i += 2) {
+      nodes.add(transitions[i + side]);
+      partners.add(transitions[i + 1 - side]);
+    }
+  }
+
+  private int[] crossedClusters(int[] path) {
+    IntArray result = new IntArray();
+    for (int cell : path) {
+      int cluster = (cell / width / SIZE) * clusterColumns + (cell % width) / SIZE;
+      if (!result.contains(cluster)) result.add(cluster);
+    }
+    return result.toArray();
+  }
+
+  private boolean walkable(int row, int column) {
+    Cluster cluster = clusters[(row / SIZE) * clusterColumns + column / SIZE];
+    return isSet(cluster.walkable, (row - cluster.rowFrom) * SIZE + column - cluster.columnFrom);
+  }
+
+  private static boolean isSet(long[] bits, int bit) {
+    return (bits[bit >> 6] & 1L << bit) != 0;
+  }
+
+  private Cluster cluster(int cell) {
+    return clusters[(cell / width / SIZE) * clusterColumns + (cell % width) / SIZE];
+  }
+
+  private int local(Cluster cluster, int cell) {
+    return (cell / width - cluster.rowFrom) * SIZE + cell % width - cluster.columnFrom;
+  }
+
+  // cost of a straight step between cells on either side of a border
+  private int crossingCost(int from, int to) {
+    Cluster a = cluster(from), b = cluster(to);
+    return STRAIGHT + CLIMB * Math.abs(b.levels[local(b, to)] - a.levels[local(a, from)]);
+  }
+
+  private int estimate(int cell, int goal) {
+    return octile(Math.abs(cell / width - goal / width), Math.abs(cell % width - goal % width));
+  }
+
+  // octile distance, never more than the cost of the cheapest path
+  private static int octile(int rows, int columns) {
+    return STRAIGHT * Math.max(rows, columns) + (DIAGONAL - STRAIGHT) * Math.min(rows, columns);
+  }
+}
@@ -1,55 +1,137 @@
 package co.rngd.harvest.moon;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 import com.badlogic.gdx.assets.*;
 
+// Generates the same map for the same seed and settings, whatever the size of the pool. Crater parameters come
+// from one stream seeded with seed; craters are then applied in waves of craters that cannot influence each other,
+// each wave in parallel. Rocks are placed per region, each region with a random stream derived from seed.
 public class RandomMap {
-  private final Random random = new Random(System.currentTimeMillis());
   private final AssetManager assetManager;
 
   public RandomMap(AssetManager assetManager) {
     this.assetManager = assetManager;
   }
 
+  public long seed = System.currentTimeMillis();
+  public ForkJoinPool pool = ForkJoinPool.commonPool();
   public int width = 128;
   public int height = 128;
   public int craters = -1;
   public int rocks = -1;
   public int crystalPercent = 30;
 
-  private void smallCrater(GameMap map) {
+  private static final int REGION_SIZE = 64;
+
+  private static class Crater {
+    final int r, c, rOuter, rInner, peak, floor;
+    int wave;
+
+    Crater(int r, int c, int rOuter, int rInner, int peak, int floor) {
+      this.r = r;
+      this.c = c;
+      this.rOuter = rOuter;
+      this.rInner = rInner;
+      this.peak = peak;
+      this.floor = floor;
+    }
+  }
+
+  private void smallCrater(Random random, List<Crater> result) {
     int r = random.nextInt(height + 1), c = random.nextInt(width + 1);
     int rInner = random.nextInt(7) + 3;
     int rOuter = rInner + random.nextInt(3) + 1;
-    map.crater(r, c, rOuter, rInner, 1 + random.nextInt(2), - 1);
+    result.add(new Crater(r, c, rOuter, rInner, 1 + random.nextInt(2), - 1));
   }
 
-  private void bigCrater(GameMap map) {
+  private void bigCrater(Random random, List<Crater> result) {
     int r = random.nextInt(height + 1), c = random.nextInt(width + 1);
     int rInner = random.nextInt(20) + 20;
     int rOuter = rInner + random.nextInt(3) + 4;
-    map.crater(r, c, rOuter, rInner, 3 + random.nextInt(2), -2);
-    map.crater(r, c, 5, 0, -1, -1);
+    result.add(new Crater(r, c, rOuter, rInner, 3 + random.nextInt(2), -2));
+    result.add(new Crater(r, c, 5, 0, -1, -1));
+  }
+
+  // heights always stay between the lowest floor and the highest peak (and the initial 0), so an edit can never
+  // reach further than that range beyond its outer radius, plus one for the neighbours it inspects
+  private static void assignWaves(List<Crater> craters) {
+    int lowest = 0, highest = 0;
+    for (Crater crater : craters) {
+      lowest = Math.min(lowest, Math.min(crater.floor, crater.peak));
+      highest = Math.max(highest, Math.max(crater.floor, crater.peak));
+    }
+    int margin = highest - lowest + 1;
+    for (int i = 0; i < craters.size(); i++) {
+      Crater crater = craters.get(i);
+      for (int j = 0; j < i; j++) {
+        Crater other = craters.get(j);
+        int reach = crater.rOuter + other.rOuter + 2 * margin;
+        if (Math.abs(crater.r - other.r) <= reach && Math.abs(crater.c - other.c) <= reach && other.wave >= crater.wave)
+          crater.wave = other.wave + 1;
+      }
+    }
   }
 
-  private void rock(GameMap map) {
-    while(true) {
-      int r = random.nextInt(height), c = random.nextInt(width);
+  private void applyCraters(GameMap map, List<Crater> craters) {
+    assignWaves(craters);
+    Map<Integer, List<Crater>> waves = craters.stream().collect(Collectors.groupingBy(crater -> crater.wave, TreeMap::new, Collectors.toList()));
+    for (List<Crater> wave : waves.values()) {
+      pool.submit(() -> wave.parallelStream().forEach(crater -> {
+        TerrainEditor editor = map.newEditor();
+        editor.crater(crater.r, crater.c, crater.rOuter, crater.rInner, crater.peak, crater.floor);
+      })).join();
+    }
+  }
+
+  private void rocks(GameMap map, int region, int regionColumns, int count) {
+    Random random = new Random(mix(seed + 0x9e3779b97f4a7c15L * (region + 1)));
+    int rowBase = (region / regionColumns) * REGION_SIZE, columnBase = (region % regionColumns) * REGION_SIZE;
+    int h = Math.min(REGION_SIZE, height - rowBase), w = Math.min(REGION_SIZE, width - columnBase);
+    for (int attempts = 0; count > 0 && attempts < 100 * h * w; attempts++) {
+      int r = rowBase + random.nextInt(h), c = columnBase + random.nextInt(w);
       if (!map.isFlat(r, c) || map.getObjectId(r, c) != 0) continue;
       map.setObject(r, c, random.nextInt(100) >= crystalPercent ? 1 : 2);
-      return;
+      count--;
+    }
+  }
+
+  // every region gets its share of the rocks by area, the remainder goes to the first regions
+  private void placeRocks(GameMap map, int rockCount) {
+    int regionRows = (height + REGION_SIZE - 1) / REGION_SIZE, regionColumns = (width + REGION_SIZE - 1) / REGION_SIZE;
+    int[] counts = new int[regionRows * regionColumns];
+    long area = (long) width * height;
+    int placed = 0;
+    for (int region = 0; region < counts.length; region++) {
+      int h = Math.min(REGION_SIZE, height - (region / regionColumns) * REGION_SIZE);
+      int w = Math.min(REGION_SIZE, width - (region % regionColumns) * REGION_SIZE);
+      counts[region] = (int) (rockCount * (long) (h * w) / area);
+      placed += counts[region];
     }
+    for (int region = 0; placed < rockCount; region = (region + 1) % counts.length, placed++) counts[region]++;
+    pool.submit(() -> IntStream.range(0, counts.length).parallel()
+        .forEach(region -> rocks(map, region, regionColumns, counts[region]))).join();
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
   }
 
+  // object models are built by whoever renders the map, so generate can run on any thread
   public GameMap generate() {
     GameMap map = new GameMap(width, height, assetManager);
+    Random random = new Random(seed);
+    List<Crater> plan = new ArrayList<>();
     int craterCount = craters >= 0 ? craters : (int) (Math.sqrt(width * height) * 0.7);
-    for (int i = 0; i < craterCount / 10; i++) bigCrater(map);
-    for (int i = 0; i < craterCount; i++) smallCrater(map);
+    for (int i = 0; i < craterCount / 10; i++) bigCrater(random, plan);
+    for (int i = 0; i < craterCount; i++) smallCrater(random, plan);
+    applyCraters(map, plan);
     int rockCount = rocks >= 0 ? rocks : (width * height / 25);
-    for (int i = 0; i < rockCount; i++) rock(map);
+    placeRocks(map, rockCount);
     map.updateControlPoints();
-    map.updateObjectModels();
     return map;
   }
 }
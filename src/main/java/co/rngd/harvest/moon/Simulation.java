@@ -0,0 +1,149 @@
+package co.rngd.harvest.moon;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import com.badlogic.gdx.utils.*;
+
+// Advances a GameplayScreen.State in fixed ticks on its own thread, so the simulation does not depend on the frame
+// rate and heavy ticks do not stall rendering. The tick works on its own copy of the state; when it is done the
+// copy is published as the current state and the one before becomes the previous state. The renderer reads an
+// interpolation of the two, the further it is into the next tick the closer to the current state.
+// Input reaches the simulation as commands, which run at the start of the next tick, and as the held controls.
+// Ticks that change nothing are not published, so an idle game copies no state; the tick after the last change is,
+// so that previous and current end up equal. The publish listener runs on the simulation thread after every
+// published tick, e.g. to request a frame from a renderer that only draws on demand. When the last tick changed
+// nothing, no controls are held and no commands wait, the thread sleeps until one of them arrives.
+// The map is shared by all copies and stays with the GL thread; ticks must not edit it.
+public class Simulation implements Disposable {
+  public static final float TICK = 1 / 30f;
+  // ticks run back to back when the simulation falls further behind than this
+  private static final long MAX_LAG = TimeUnit.MILLISECONDS.toNanos(250);
+
+  public interface Command {
+    void apply(GameplayScreen.State state);
+  }
+
+  private final GameplayScreen.State working = new GameplayScreen.State();
+  private final GameplayScreen.State current = new GameplayScreen.State();
+  private final GameplayScreen.State previous = new GameplayScreen.State();
+  private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile float speed = 1;
+  private volatile int controls;
+  private volatile boolean changing;
+  private volatile Runnable publishListener;
+  // guarded by this
+  private long ticks, publishedAt;
+  private RuntimeException failure;
+
+  public Simulation(GameplayScreen.State initial) {
+    working.set(initial);
+    current.set(initial);
+    previous.set(initial);
+    publishedAt = System.nanoTime();
+    thread = new Thread(this::run, "simulation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run() {
+    long next = System.nanoTime();
+    while (running) {
+      if (!changing && controls == 0 && commands.isEmpty()) {
+        LockSupport.park(this);
+        next = System.nanoTime();
+        continue;
+      }
+      long now = System.nanoTime();
+      if (now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      boolean changed = false;
+      try {
+        for (Command command; (command = commands.poll()) != null; ) {
+          command.apply(working);
+          changed = true;
+        }
+        changed |= working.step(controls, TICK);
+      }
+      catch (RuntimeException e) {
+        synchronized (this) {
+          failure = e;
+        }
+        // so that read reports it
+        Runnable listener = publishListener;
+        if (listener != null) listener.run();
+        return;
+      }
+      boolean publish = changed || changing;
+      changing = changed;
+      synchronized (this) {
+        if (publish) {
+          previous.set(current);
+          current.set(working);
+          publishedAt = System.nanoTime();
+        }
+        ticks++;
+      }
+      Runnable listener = publishListener;
+      if (publish && listener != null) listener.run();
+      next += (long) (TICK * 1e9 / speed);
+      if (now - next > MAX_LAG) next = now;
+    }
+  }
+
+  public void submit(Command command) {
+    commands.add(command);
+    LockSupport.unpark(thread);
+  }
+
+  // bits of GameplayScreen.State controls that are held down, applied every tick until they change
+  public void setControls(int value) {
+    if (value == controls) return;
+    controls = value;
+    LockSupport.unpark(thread);
+  }
+
+  // simulated seconds per real second, more than 1 runs faster than real time
+  public void setSpeed(float value) {
+    if (value <= 0) throw new IllegalArgumentException("Invalid speed: " + value);
+    speed = value;
+  }
+
+  public float getSpeed() { return speed; }
+
+  // whether the last tick changed the state, so what read returns is still moving
+  public boolean isChanging() { return changing; }
+
+  public void setPublishListener(Runnable listener) { publishListener = listener; }
+
+  // fills out with the state between the last two ticks for this moment; out shares the map
+  public synchronized void read(GameplayScreen.State out) {
+    if (failure != null) throw new IllegalStateException("Simulation failed", failure);
+    float alpha = (System.nanoTime() - publishedAt) * speed / (TICK * 1e9f);
+    out.interpolate(previous, current, Math.min(alpha, 1f));
+  }
+
+  // fills out with the state of the last completed tick
+  public synchronized void readLatest(GameplayScreen.State out) {
+    if (failure != null) throw new IllegalStateException("Simulation failed", failure);
+    out.set(current);
+  }
+
+  public synchronized long getTicks() { return ticks; }
+
+  // commands that have not run yet are dropped
+  @Override
+  public void dispose() {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
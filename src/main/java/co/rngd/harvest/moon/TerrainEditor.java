@@ -0,0 +1,102 @@
+package co.rngd.harvest.moon;
+
+// Breadth-first height propagation over a (rows x columns) vertex grid. Every step away from a seed
+// changes the level by one, so a vertex is only revisited when a strictly better level reaches it.
+public class TerrainEditor {
+  public static final int RAISE = 1, LOWER = -1;
+
+  public static class Bounds {
+    public int minRow, minColumn, maxRow, maxColumn;
+
+    public boolean isEmpty() { return minRow > maxRow; }
+
+    void clear() {
+      minRow = minColumn = Integer.MAX_VALUE;
+      maxRow = maxColumn = Integer.MIN_VALUE;
+    }
+
+    void add(int row, int column) {
+      if (row < minRow) minRow = row;
+      if (row > maxRow) maxRow = row;
+      if (column < minColumn) minColumn = column;
+      if (column > maxColumn) maxColumn = column;
+    }
+  }
+
+  private final MapStorage storage;
+  private final int rows, columns;
+  private final IntQueue queue = new IntQueue(256);
+  private final Bounds bounds = new Bounds();
+
+  public TerrainEditor(MapStorage storage) {
+    this.storage = storage;
+    this.rows = storage.height() + 1;
+    this.columns = storage.width() + 1;
+    bounds.clear();
+  }
+
+  // starts a new edit, the bounds accumulate every vertex changed until the next call
+  public void begin() {
+    queue.clear();
+    bounds.clear();
+  }
+
+  public Bounds getBounds() { return bounds; }
+
+  public void seed(int row, int column, int toLevel, int direction) {
+    if (row < 0 || row >= rows) return;
+    if (column < 0 || column >= columns) return;
+    set(row, column, toLevel, direction);
+  }
+
+  public void propagate(int direction) {
+    while (!queue.isEmpty()) {
+      int index = queue.poll();
+      int row = index / columns, column = index - row * columns;
+      int level = storage.getHeight(row, column) - direction;
+      int r0 = row > 0 ? row - 1 : row, r1 = row < rows - 1 ? row + 1 : row;
+      int c0 = column > 0 ? column - 1 : column, c1 = column < columns - 1 ? column + 1 : column;
+      for (int r = r0; r <= r1; r++)
+        for (int c = c0; c <= c1; c++)
+          set(r, c, level, direction);
+    }
+  }
+
+  public void raise(int row, int column, int toLevel) {
+    seed(row, column, toLevel, RAISE);
+    propagate(RAISE);
+  }
+
+  public void lower(int row, int column, int toLevel) {
+    seed(row, column, toLevel, LOWER);
+    propagate(LOWER);
+  }
+
+  // raises a disc of radius rOuter to peak, then lowers the disc of radius rInner to floor
+  public void crater(int r, int c, int rOuter, int rInner, int peak, int floor) {
+    int rOuterSq = rOuter * rOuter;
+    int rInnerSq = rInner * rInner;
+    for (int rr = r - rOuter; rr <= r + rOuter; rr++) {
+      for (int cc = c - rOuter; cc <= c + rOuter; cc++) {
+        int distSq = (rr - r) * (rr - r) + (cc - c) * (cc - c);
+        if (distSq < rOuterSq) seed(rr, cc, peak, RAISE);
+      }
+    }
+    propagate(RAISE);
+
+    for (int rr = r - rInner; rr <= r + rInner; rr++) {
+      for (int cc = c - rInner; cc <= c + rInner; cc++) {
+        int distSq = (rr - r) * (rr - r) + (cc - c) * (cc - c);
+        if (distSq < rInnerSq) seed(rr, cc, floor, LOWER);
+      }
+    }
+    propagate(LOWER);
+  }
+
+  private void set(int row, int column, int level, int direction) {
+    if (storage.getHeight(row, column) * direction >= level * direction) return;
+    storage.setHeight(row, column, level);
+    bounds.add(row, column);
+    queue.add(row * columns + column);
+  }
+}
@@ -0,0 +1,239 @@
+package co.rngd.harvest.moon;
+
+import java.util.concurrent.*;
+import com.badlogic.gdx.graphics.g3d.*;
+import com.badlogic.gdx.graphics.g3d.utils.*;
+import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.*;
+import com.badlogic.gdx.utils.*;
+
+// Surface, grid and object models of a map, one model per resident chunk so terrain edits only rebuild the chunks
+// they touched and chunks that leave the resident window of the map are released. The objects of a chunk are merged
+// into a single model, so the number of renderables does not grow with the number of objects. Every chunk has a
+// bounding box, cull leaves only the chunks inside the camera frustum in the render arrays.
+// Surface and grid vertices are generated on the executor, update uploads the finished chunks on the GL thread. A
+// chunk that is rebuilt keeps showing its old models until the new ones are in.
+public class TerrainModel implements Disposable {
+  private static class Built {
+    final int chunk, version;
+    final ChunkMesh surface, grid;
+    RuntimeException failure;
+
+    Built(int chunk, int version, ChunkMesh surface, ChunkMesh grid) {
+      this.chunk = chunk;
+      this.version = version;
+      this.surface = surface;
+      this.grid = grid;
+    }
+  }
+
+  private final GameMap map;
+  private final Executor executor;
+  private final ModelBuilder modelBuilder = new ModelBuilder();
+  private final ModelInstance[] surfaceChunks, gridChunks, objectChunks;
+  private final Array<ModelInstance> surface = new Array<>();
+  private final Array<ModelInstance> grid = new Array<>();
+  private final Array<ModelInstance> objects = new Array<>();
+  private final BoundingBox[] bounds;
+  private final BoundingBox objectBounds = new BoundingBox();
+  private final IntArray changedChunks = new IntArray();
+  private final IntArray builtChunks = new IntArray();
+  // chunks that should have models, and a version per chunk so results of outdated builds are dropped
+  private final boolean[] live;
+  private final int[] versions;
+  private final BlockingQueue<Built> finished = new LinkedBlockingQueue<>();
+  private final ConcurrentLinkedQueue<ChunkMesh> spareSurfaces = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<ChunkMesh> spareGrids = new ConcurrentLinkedQueue<>();
+  private int pendingBuilds;
+  private int visibleChunks;
+  private int residentVersion = -1;
+  private float gridOffset;
+
+  public TerrainModel(GameMap map) {
+    this(map, ForkJoinPool.commonPool());
+  }
+
+  public TerrainModel(GameMap map, Executor executor) {
+    this.map = map;
+    this.executor = executor;
+    int chunks = map.chunkRows() * map.chunkColumns();
+    surfaceChunks = new ModelInstance[chunks];
+    gridChunks = new ModelInstance[chunks];
+    objectChunks = new ModelInstance[chunks];
+    bounds = new BoundingBox[chunks];
+    live = new boolean[chunks];
+    versions = new int[chunks];
+    update();
+  }
+
+  // requests new models for the chunks the map reports as changed, follows the resident window and uploads the
+  // chunks that finished building; returns whether the render arrays changed
+  public boolean update() {
+    boolean changed = false;
+    changedChunks.clear();
+    if (map.updateDirtyChunks(changedChunks)) {
+      for (int i = 0; i < changedChunks.size; i++) {
+        int chunk = changedChunks.get(i);
+        if (live[chunk]) request(chunk);
+      }
+    }
+    changedChunks.clear();
+    if (map.updateDirtyObjectChunks(changedChunks)) {
+      for (int i = 0; i < changedChunks.size; i++) {
+        int chunk = changedChunks.get(i);
+        if (surfaceChunks[chunk] == null) continue;
+        releaseObjects(chunk);
+        buildObjects(chunk);
+      }
+      changed = true;
+    }
+    if (residentVersion != map.getResidentVersion()) {
+      residentVersion = map.getResidentVersion();
+      for (int chunk = 0; chunk < live.length; chunk++) {
+        boolean resident = map.isChunkResident(chunk);
+        if (resident && !live[chunk]) {
+          live[chunk] = true;
+          request(chunk);
+        }
+        else if (!resident && live[chunk]) {
+          live[chunk] = false;
+          versions[chunk]++;
+          if (surfaceChunks[chunk] != null) release(chunk);
+          changed = true;
+        }
+      }
+    }
+    for (Built built; (built = finished.poll()) != null; ) changed |= install(built);
+    if (changed) updateRenderArrays();
+    return changed;
+  }
+
+  // waits for all requested chunks and uploads them
+  public void finishBuilding() {
+    boolean changed = false;
+    try {
+      while (pendingBuilds > 0) changed |= install(finished.take());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (changed) updateRenderArrays();
+  }
+
+  public boolean isBuilding() { return pendingBuilds > 0; }
+
+  private void request(int chunk) {
+    int version = ++versions[chunk];
+    pendingBuilds++;
+    // on this thread, the worker only reads them
+    float[] controlPoints = map.prepareChunk(chunk);
+    executor.execute(() -> {
+      ChunkMesh surfaceMesh = spareSurfaces.poll(), gridMesh = spareGrids.poll();
+      Built built = new Built(chunk, version,
+          surfaceMesh != null ? surfaceMesh : new ChunkMesh(6), gridMesh != null ? gridMesh : new ChunkMesh(3));
+      try {
+        map.buildChunkMeshes(chunk, controlPoints, built.surface, built.grid);
+      }
+      catch (RuntimeException e) {
+        built.failure = e;
+      }
+      finished.add(built);
+    });
+  }
+
+  // outdated results were built from a map that changed since, or for a chunk that is no longer resident
+  private boolean install(Built built) {
+    pendingBuilds--;
+    int chunk = built.chunk;
+    boolean current = built.version == versions[chunk] && live[chunk];
+    if (current && built.failure != null) throw new IllegalStateException("Failed to build chunk " + chunk, built.failure);
+    if (current) {
+      if (surfaceChunks[chunk] != null) release(chunk);
+      surfaceChunks[chunk] = new ModelInstance(map.createSurfaceChunkModel(chunk, built.surface, modelBuilder));
+      gridChunks[chunk] = new ModelInstance(map.createGridChunkModel(chunk, built.grid, modelBuilder));
+      gridChunks[chunk].transform.setToTranslation(0, gridOffset, 0);
+      if (bounds[chunk] == null) bounds[chunk] = new BoundingBox();
+      built.surface.getBounds(bounds[chunk]);
+      buildObjects(chunk);
+    }
+    spareSurfaces.add(built.surface);
+    spareGrids.add(built.grid);
+    return current;
+  }
+
+  private void updateRenderArrays() {
+    builtChunks.clear();
+    for (int chunk = 0; chunk < surfaceChunks.length; chunk++)
+      if (surfaceChunks[chunk] != null) builtChunks.add(chunk);
+    cull(null);
+  }
+
+  // fills the render arrays with the chunks whose bounds intersect the frustum, or with all chunks for null
+  public void cull(Frustum frustum) {
+    surface.clear();
+    grid.clear();
+    objects.clear();
+    visibleChunks = 0;
+    for (int i = 0; i < builtChunks.size; i++) {
+      int chunk = builtChunks.get(i);
+      BoundingBox box = bounds[chunk];
+      if (frustum != null && !frustum.boundsInFrustum(box.getCenterX(), box.getCenterY() + gridOffset / 2, box.getCenterZ(),
+            box.getWidth() / 2, (box.getHeight() + gridOffset) / 2, box.getDepth() / 2)) continue;
+      surface.add(surfaceChunks[chunk]);
+      grid.add(gridChunks[chunk]);
+      if (objectChunks[chunk] != null) objects.add(objectChunks[chunk]);
+      visibleChunks++;
+    }
+  }
+
+  // culling stats: chunks that have models, and those of them that passed the last cull
+  public int getBuiltChunks() { return builtChunks.size; }
+  public int getVisibleChunks() { return visibleChunks; }
+
+  // extends the bounds of the chunk, which start out as those of its surface; the grid is the surface lifted by
+  // gridOffset
+  private void buildObjects(int chunk) {
+    Model model = map.createObjectChunkModel(chunk, modelBuilder);
+    if (model == null) return;
+    objectChunks[chunk] = new ModelInstance(model);
+    bounds[chunk].ext(objectChunks[chunk].calculateBoundingBox(objectBounds));
+  }
+
+  private void release(int chunk) {
+    surfaceChunks[chunk].model.dispose();
+    gridChunks[chunk].model.dispose();
+    surfaceChunks[chunk] = null;
+    gridChunks[chunk] = null;
+    releaseObjects(chunk);
+  }
+
+  private void releaseObjects(int chunk) {
+    if (objectChunks[chunk] == null) return;
+    objectChunks[chunk].model.dispose();
+    objectChunks[chunk] = null;
+  }
+
+  public Array<ModelInstance> getSurface() { return surface; }
+  public Array<ModelInstance> getGrid() { return grid; }
+  public Array<ModelInstance> getObjects() { return objects; }
+
+  public void setGridOffset(float value) {
+    if (value == gridOffset) return;
+    gridOffset = value;
+    for (ModelInstance instance : gridChunks)
+      if (instance != null) instance.transform.setToTranslation(0, value, 0);
+  }
+
+  // builds still running are dropped when they finish
+  @Override
+  public void dispose() {
+    for (int chunk = 0; chunk < surfaceChunks.length; chunk++) {
+      live[chunk] = false;
+      versions[chunk]++;
+      if (surfaceChunks[chunk] != null) release(chunk);
+    }
+    surface.clear();
+    grid.clear();
+    objects.clear();
+  }
+}
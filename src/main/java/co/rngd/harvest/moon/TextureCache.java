@@ -1,37 +1,113 @@
 package co.rngd.harvest.moon;
 
 import java.util.*;
+import com.badlogic.gdx.assets.*;
 import com.badlogic.gdx.utils.*;
 import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.graphics.g2d.*;
 
+// Regions of textures that the asset manager loads, counted per name: acquire queues a texture for loading and
+// release unloads it when the last reference is gone. Screens acquire what they need up front, usually through the
+// preload manifest, and get the regions once the asset manager has finished; get on a texture that is not loaded
+// yet waits for it on the calling thread.
+// Names are looked up in the added atlases first, by their path without the extension, so images packed together
+// draw from one texture and the sprite batch does not flush between them. A name ending in _<index> is frame index
+// of a sequence; getSequence returns all frames of one in order. Names that are in no atlas load as textures of
+// their own.
 public class TextureCache implements Disposable {
+  private final AssetManager assetManager;
+  private final ObjectIntMap<String> references = new ObjectIntMap<>();
   private final Map<String, TextureRegion> cachedRegions = new HashMap<>();
-  private final List<Disposable> disposables = new ArrayList<>();
+  // regions by name, frames of sequences by name_index, and the frames of every sequence ordered by index
+  private final Map<String, TextureRegion> atlasRegions = new HashMap<>();
+  private final Map<String, Array<TextureRegion>> sequences = new HashMap<>();
+  private final List<String> atlases = new ArrayList<>();
+  private int indexedAtlases;
 
+  public TextureCache(AssetManager assetManager) {
+    this.assetManager = assetManager;
+  }
+
+  public void acquire(String name) {
+    int count = references.getAndIncrement(name, 0, 1);
+    if (count == 0) assetManager.load(name, Texture.class);
+  }
+
+  public void release(String name) {
+    int count = references.get(name, 0);
+    if (count == 0) throw new IllegalStateException("Texture not acquired: " + name);
+    if (count > 1) {
+      references.put(name, count - 1);
+      return;
+    }
+    references.remove(name, 0);
+    cachedRegions.remove(name);
+    assetManager.unload(name);
+  }
+
+  // queues the atlas for loading, it is unloaded with the cache
+  public void addAtlas(String atlasName) {
+    assetManager.load(atlasName, TextureAtlas.class);
+    atlases.add(atlasName);
+  }
+
+  // a texture that was never acquired is acquired until the cache is disposed
   public TextureRegion get(String name) {
-    String key = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.') - 1) : name;
-    if (!cachedRegions.containsKey(key)) {
-      Texture texture = new Texture(name);
-      disposables.add(texture);
-      cachedRegions.put(key, new TextureRegion(texture));
+    indexAtlases();
+    TextureRegion region = atlasRegions.get(key(name));
+    if (region != null) return region;
+    region = cachedRegions.get(name);
+    if (region == null) {
+      if (!references.containsKey(name)) acquire(name);
+      region = new TextureRegion(assetManager.<Texture>finishLoadingAsset(name));
+      cachedRegions.put(name, region);
     }
-    return cachedRegions.get(key);
+    return region;
+  }
+
+  // the frames of the sequence packed from name_0, name_1 and so on, ordered by index
+  public Array<TextureRegion> getSequence(String name) {
+    indexAtlases();
+    Array<TextureRegion> frames = sequences.get(key(name));
+    if (frames == null) throw new IllegalArgumentException("No sequence: " + name);
+    return frames;
   }
 
-  public void preloadAtlas(String atlasName) {
-    TextureAtlas atlas = new TextureAtlas(atlasName);
-    disposables.add(atlas);
-    for (TextureAtlas.AtlasRegion region : atlas.getRegions()) {
-      // does not handle sequences correctly
-      cachedRegions.put(region.name, region);
+  // waits for atlases that are still loading, so names they contain never fall back to textures of their own
+  private void indexAtlases() {
+    for (; indexedAtlases < atlases.size(); indexedAtlases++) {
+      TextureAtlas atlas = assetManager.finishLoadingAsset(atlases.get(indexedAtlases));
+      for (TextureAtlas.AtlasRegion region : atlas.getRegions()) {
+        if (region.index < 0) {
+          atlasRegions.put(region.name, region);
+          continue;
+        }
+        atlasRegions.put(region.name + "_" + region.index, region);
+        sequences.computeIfAbsent(region.name, name -> new Array<>()).add(region);
+      }
+      for (Array<TextureRegion> frames : sequences.values())
+        frames.sort(Comparator.comparingInt(region -> ((TextureAtlas.AtlasRegion) region).index));
     }
   }
 
+  // atlas regions are named after their file without the extension; an index is written without leading zeros
+  private static String key(String name) {
+    String result = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+    int split = result.lastIndexOf('_');
+    if (split <= result.lastIndexOf('/') || split == result.length() - 1) return result;
+    for (int i = split + 1; i < result.length(); i++) if (!Character.isDigit(result.charAt(i))) return result;
+    return result.substring(0, split + 1) + Integer.parseInt(result.substring(split + 1));
+  }
+
   @Override
   public void dispose() {
-    disposables.forEach(Disposable::dispose);
-    disposables.clear();
+    for (String name : references.keys()) assetManager.unload(name);
+    for (String atlas : atlases) assetManager.unload(atlas);
+    references.clear();
+    atlases.clear();
+    indexedAtlases = 0;
     cachedRegions.clear();
+    atlasRegions.clear();
+    sequences.clear();
   }
 }
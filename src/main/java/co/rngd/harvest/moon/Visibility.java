@@ -0,0 +1,273 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.LongArray;
+
+// Fog of war: per player a bitmap of the cells some unit of the player sees and one of the cells that were ever
+// seen, both indexed by row * width + column. Units see the cells within their radius that are not hidden behind
+// higher terrain. update only recomputes the units that moved, changed or whose view touches a chunk whose terrain
+// changed; every cell counts the units of a player that see it, so a unit is taken out by counting down its cells.
+// Lines of sight come from a table per radius that lists the cells of the view disc nearest first, each with the
+// cell before it on the line from the center. A cell is visible when the slope from the eye to it is at least the
+// steepest slope of the cells before it, which is carried along the line as a horizon.
+// Like GameMap, a Visibility belongs to one thread; only the line of sight work of update runs on the pool.
+public class Visibility {
+  // eye height of a unit above the level of its cell, in height steps
+  private static final int EYE = 1;
+
+  private static class Unit {
+    final int player, radius;
+    int row, column;
+    boolean dirty = true;
+    // cells the unit sees, counted in the cells of its player
+    final IntArray cells = new IntArray();
+
+    Unit(int player, int row, int column, int radius) {
+      this.player = player;
+      this.row = row;
+      this.column = column;
+      this.radius = radius;
+    }
+  }
+
+  // the view disc of a radius, nearest cells first, so the cell before each cell on its line comes before it
+  static class Rays {
+    final int[] rows, columns, previous;
+    final float[] distances;
+
+    Rays(int radius) {
+      int side = 2 * radius + 1;
+      // sorted by steps on the line, then by distance and offset so rays are reproducible
+      LongArray order = new LongArray();
+      for (int r = -radius; r <= radius; r++) {
+        for (int c = -radius; c <= radius; c++) {
+          if (squared(r, c) > radius * radius) continue;
+          order.add((long) steps(r, c) << 48 | (long) squared(r, c) << 24 | (r + radius) * side + c + radius);
+        }
+      }
+      order.sort();
+      int[] index = new int[side * side];
+      rows = new int[order.size];
+      columns = new int[order.size];
+      previous = new int[order.size];
+      distances = new float[order.size];
+      for (int i = 0; i < order.size; i++) {
+        int offset = (int) (order.get(i) & 0xffffff), r = offset / side - radius, c = offset % side - radius, steps = steps(r, c);
+        rows[i] = r;
+        columns[i] = c;
+        distances[i] = (float) Math.sqrt(squared(r, c));
+        index[offset] = i;
+        if (steps == 0) previous[i] = -1;
+        else {
+          // one step back towards the center, never further out, so it is in the disc as well
+          int pr = Math.round((float) r * (steps - 1) / steps), pc = Math.round((float) c * (steps - 1) / steps);
+          previous[i] = index[(pr + radius) * side + pc + radius];
+        }
+      }
+    }
+
+    private static int steps(int r, int c) { return Math.max(Math.abs(r), Math.abs(c)); }
+    private static int squared(int r, int c) { return r * r + c * c; }
+  }
+
+  private final GameMap map;
+  private final ForkJoinPool pool;
+  private final int width, height, players;
+  private final long[][] visible, explored;
+  private final char[][] counts;
+  private final int[] versions;
+  private final Array<Unit> units = new Array<>();
+  private final IntArray freeUnits = new IntArray();
+  private final IntMap<Rays> rays = new IntMap<>();
+  private final int[] chunkVersions;
+  private final ThreadLocal<float[]> horizons = ThreadLocal.withInitial(() -> new float[0]);
+
+  public Visibility(GameMap map, int players) {
+    this(map, players, ForkJoinPool.commonPool());
+  }
+
+  public Visibility(GameMap map, int players, ForkJoinPool pool) {
+    this.map = map;
+    this.pool = pool;
+    this.width = map.width;
+    this.height = map.height;
+    this.players = players;
+    int cells = width * height;
+    visible = new long[players][(cells + 63) / 64];
+    explored = new long[players][(cells + 63) / 64];
+    counts = new char[players][cells];
+    versions = new int[players];
+    chunkVersions = new int[map.chunkRows() * map.chunkColumns()];
+    for (int chunk = 0; chunk < chunkVersions.length; chunk++) chunkVersions[chunk] = map.getChunkVersion(chunk);
+  }
+
+  public int addUnit(int player, int row, int column, int radius) {
+    if (player < 0 || player >= players) throw new IllegalArgumentException("Invalid player: " + player);
+    if (radius < 0) throw new IllegalArgumentException("Invalid radius: " + radius);
+    Unit unit = new Unit(player, row, column, radius);
+    if (freeUnits.notEmpty()) {
+      int id = freeUnits.pop();
+      units.set(id, unit);
+      return id;
+    }
+    units.add(unit);
+    return units.size - 1;
+  }
+
+  public void moveUnit(int id, int row, int column) {
+    Unit unit = unit(id);
+    if (unit.row == row && unit.column == column) return;
+    unit.row = row;
+    unit.column = column;
+    unit.dirty = true;
+  }
+
+  // the cells of the unit stop being visible right away
+  public void removeUnit(int id) {
+    Unit unit = unit(id);
+    hide(unit);
+    units.set(id, null);
+    freeUnits.add(id);
+  }
+
+  private Unit unit(int id) {
+    Unit unit = id >= 0 && id < units.size ? units.get(id) : null;
+    if (unit == null) throw new IllegalArgumentException("Invalid unit: " + id);
+    return unit;
+  }
+
+  // recomputes the units that moved and those whose view touches a chunk with changed terrain
+  public void update() {
+    for (int chunk = 0; chunk < chunkVersions.length; chunk++) {
+      int version = map.getChunkVersion(chunk);
+      if (chunkVersions[chunk] == version) continue;
+      chunkVersions[chunk] = version;
+      int rowFrom = (chunk / map.chunkColumns()) * GameMap.TILE_SIZE, columnFrom = (chunk % map.chunkColumns()) * GameMap.TILE_SIZE;
+      for (Unit unit : units) {
+        if (unit == null || unit.dirty) continue;
+        unit.dirty = unit.row + unit.radius >= rowFrom && unit.row - unit.radius < rowFrom + GameMap.TILE_SIZE &&
+                     unit.column + unit.radius >= columnFrom && unit.column - unit.radius < columnFrom + GameMap.TILE_SIZE;
+      }
+    }
+    List<Unit> dirty = new ArrayList<>();
+    for (Unit unit : units) {
+      if (unit == null || !unit.dirty) continue;
+      dirty.add(unit);
+      hide(unit);
+      // tables are made here, look only reads them
+      rays(unit.radius);
+    }
+    if (dirty.isEmpty()) return;
+    pool.submit(() -> dirty.parallelStream().forEach(this::look)).join();
+    for (Unit unit : dirty) {
+      unit.dirty = false;
+      show(unit);
+    }
+  }
+
+  private Rays rays(int radius) {
+    Rays result = rays.get(radius);
+    if (result == null) rays.put(radius, result = new Rays(radius));
+    return result;
+  }
+
+  // fills the cells of the unit with the cells in line of sight, on a pool thread
+  private void look(Unit unit) {
+    Rays rays = this.rays.get(unit.radius);
+    float[] horizon = horizons.get();
+    if (horizon.length < rays.rows.length) horizons.set(horizon = new float[rays.rows.length]);
+    unit.cells.clear();
+    if (unit.row < 0 || unit.row >= height || unit.column < 0 || unit.column >= width) return;
+    // levels are the four corner heights summed, so the eye is lifted by four times its height
+    int eye = level(unit.row, unit.column) + 4 * EYE;
+    for (int i = 0; i < rays.rows.length; i++) {
+      int row = unit.row + rays.rows[i], column = unit.column + rays.columns[i], before = rays.previous[i];
+      if (before < 0) {
+        horizon[i] = Float.NEGATIVE_INFINITY;
+        unit.cells.add(row * width + column);
+        continue;
+      }
+      // lines are straight, so nothing behind a cell outside the map is inside it
+      if (row < 0 || row >= height || column < 0 || column >= width) {
+        horizon[i] = Float.POSITIVE_INFINITY;
+        continue;
+      }
+      float slope = (level(row, column) - eye) / rays.distances[i];
+      if (slope >= horizon[before]) unit.cells.add(row * width + column);
+      horizon[i] = Math.max(horizon[before], slope);
+    }
+  }
+
+  private int level(int row, int column) {
+    return map.height(row, column) + map.height(row, column + 1) + map.height(row + 1, column) + map.height(row + 1, column + 1);
+  }
+
+  private void show(Unit unit) {
+    char[] count = counts[unit.player];
+    long[] bits = visible[unit.player], seen = explored[unit.player];
+    boolean changed = false;
+    for (int i = 0; i < unit.cells.size; i++) {
+      int cell = unit.cells.get(i);
+      if (count[cell]++ != 0) continue;
+      bits[cell >> 6] |= 1L << cell;
+      seen[cell >> 6] |= 1L << cell;
+      changed = true;
+    }
+    if (changed) versions[unit.player]++;
+  }
+
+  private void hide(Unit unit) {
+    char[] count = counts[unit.player];
+    long[] bits = visible[unit.player];
+    boolean changed = false;
+    for (int i = 0; i < unit.cells.size; i++) {
+      int cell = unit.cells.get(i);
+      if (--count[cell] != 0) continue;
+      bits[cell >> 6] &= ~(1L << cell);
+      changed = true;
+    }
+    unit.cells.clear();
+    if (changed) versions[unit.player]++;
+  }
+
+  public boolean isVisible(int player, int row, int column) {
+    int cell = row * width + column;
+    return (visible[player][cell >> 6] & 1L << cell) != 0;
+  }
+
+  public boolean isExplored(int player, int row, int column) {
+    int cell = row * width + column;
+    return (explored[player][cell >> 6] & 1L << cell) != 0;
+  }
+
+  // whether the player sees any cell of [rowFrom, rowTo) x [columnFrom, columnTo)
+  public boolean isAnyVisible(int player, int rowFrom, int columnFrom, int rowTo, int columnTo) {
+    long[] bits = visible[player];
+    rowFrom = Math.max(rowFrom, 0);
+    columnFrom = Math.max(columnFrom, 0);
+    rowTo = Math.min(rowTo, height);
+    columnTo = Math.min(columnTo, width);
+    if (columnFrom >= columnTo) return false;
+    for (int row = rowFrom; row < rowTo; row++) {
+      int from = row * width + columnFrom, to = row * width + columnTo - 1;
+      for (int word = from >> 6; word <= to >> 6; word++) {
+        long w = bits[word];
+        if (word == from >> 6) w &= -1L << (from & 63);
+        if (word == to >> 6) w &= -1L >>> (63 - (to & 63));
+        if (w != 0) return true;
+      }
+    }
+    return false;
+  }
+
+  // the bitmaps themselves, for renderers that upload them; they must not be modified
+  public long[] getVisible(int player) { return visible[player]; }
+  public long[] getExplored(int player) { return explored[player]; }
+
+  // changes whenever a cell of the player becomes visible or hidden, so renderers know when to upload again
+  public int getVersion(int player) { return versions[player]; }
+}
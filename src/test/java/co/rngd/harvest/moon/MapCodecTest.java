@@ -0,0 +1,167 @@
+package co.rngd.harvest.moon;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Round trips maps through every save format the game reads. Every file is read both from a stream and from a
+// BufferInput, the two ways DataStore reads.
+class MapCodecTest {
+  private static final int ROUNDS = 4;
+
+  @Test
+  void deflatedRoundTrip() throws IOException {
+    for (ArrayMapStorage storage : maps()) checkCurrent(storage, true);
+  }
+
+  @Test
+  void plainRoundTrip() throws IOException {
+    for (ArrayMapStorage storage : maps()) checkCurrent(storage, false);
+  }
+
+  // version 4 is the map size followed by every height and then every object as a plain int
+  @Test
+  void readsVersion4() throws IOException {
+    for (ArrayMapStorage storage : maps()) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream output = new DataOutputStream(bytes)) {
+        output.writeInt(4);
+        output.writeInt(storage.width());
+        output.writeInt(storage.height());
+        for (int row = 0; row <= storage.height(); row++)
+          for (int column = 0; column <= storage.width(); column++) output.writeInt(storage.getHeight(row, column));
+        for (int row = 0; row < storage.height(); row++)
+          for (int column = 0; column < storage.width(); column++) output.writeInt(storage.getObject(row, column));
+      }
+      checkRead(new GameMap.GameMapDataStore(), bytes.toByteArray(), storage, "version 4");
+    }
+  }
+
+  // values that need every zigzag bit and the longest varints
+  @Test
+  void codecKeepsExtremeValues() throws IOException {
+    Random random = new Random(2);
+    int[] choices = { Integer.MIN_VALUE, Integer.MAX_VALUE, -1, 0, 1, 127, 128, -64, -65 };
+    for (int round = 0; round < ROUNDS; round++) {
+      int width = 1 + random.nextInt(200), height = 1 + random.nextInt(200);
+      ArrayMapStorage storage = new ArrayMapStorage(width, height);
+      int[] values = new int[width + 1];
+      for (int row = 0; row <= height; row++) {
+        for (int column = 0; column <= width; column++)
+          values[column] = random.nextBoolean() ? choices[random.nextInt(choices.length)] : random.nextInt();
+        storage.setHeights(row, values);
+      }
+      for (int row = 0; row < height; row++) {
+        for (int column = 0; column < width; column++)
+          values[column] = random.nextBoolean() ? choices[random.nextInt(choices.length)] : random.nextInt();
+        storage.setObjects(row, values);
+      }
+
+      MapCodec codec = new MapCodec();
+      codec.encode(storage);
+      byte[] encoded = Arrays.copyOf(codec.getBytes(), codec.size());
+      ArrayMapStorage decoded = new ArrayMapStorage(width, height);
+      new MapCodec().decode(encoded, encoded.length, decoded);
+      assertSameLayers(storage, heights(decoded), objects(decoded), "codec");
+
+      codec.deflate();
+      assertArrayEquals(encoded, MapCodec.inflate(codec.getBytes(), codec.size(), encoded.length), "deflate");
+    }
+  }
+
+  @Test
+  void refusesTruncatedLayers() {
+    ArrayMapStorage storage = maps().get(1);
+    MapCodec codec = new MapCodec();
+    codec.encode(storage);
+    byte[] encoded = Arrays.copyOf(codec.getBytes(), codec.size());
+    assertThrows(IOException.class, () ->
+        new MapCodec().decode(encoded, encoded.length - 1, new ArrayMapStorage(storage.width(), storage.height())));
+  }
+
+  private static void checkCurrent(MapStorage storage, boolean compress) throws IOException {
+    GameMap.GameMapDataStore store = new GameMap.GameMapDataStore();
+    store.setCompress(compress);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      store.writeTo(new GameMap(storage, null), output);
+    }
+    checkRead(store, bytes.toByteArray(), storage, compress ? "version 5, deflated" : "version 5");
+  }
+
+  private static void checkRead(GameMap.GameMapDataStore store, byte[] file, MapStorage expected, String format)
+      throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(file))) {
+      GameMap map = store.readFrom(input);
+      assertSameLayers(expected, heights(map), objects(map), format + " from a stream");
+    }
+    BufferInput input = new BufferInput(ByteBuffer.wrap(file));
+    GameMap map = store.readFrom(input);
+    assertSameLayers(expected, heights(map), objects(map), format + " from a buffer");
+    assertFalse(input.buffer().hasRemaining(), format + ": bytes left after the map");
+  }
+
+  private static void assertSameLayers(MapStorage expected, int[][] heights, int[][] objects, String format) {
+    assertArrayEquals(heights(expected), heights, format + ": heights");
+    assertArrayEquals(objects(expected), objects, format + ": objects");
+  }
+
+  private static int[][] heights(MapStorage storage) {
+    int[][] result = new int[storage.height() + 1][storage.width() + 1];
+    for (int row = 0; row <= storage.height(); row++) storage.getHeights(row, result[row]);
+    return result;
+  }
+
+  private static int[][] objects(MapStorage storage) {
+    int[][] result = new int[storage.height()][storage.width()];
+    for (int row = 0; row < storage.height(); row++) storage.getObjects(row, result[row]);
+    return result;
+  }
+
+  private static int[][] heights(GameMap map) {
+    int[][] result = new int[map.height + 1][map.width + 1];
+    for (int row = 0; row <= map.height; row++)
+      for (int column = 0; column <= map.width; column++) result[row][column] = map.height(row, column);
+    return result;
+  }
+
+  private static int[][] objects(GameMap map) {
+    int[][] result = new int[map.height][map.width];
+    for (int row = 0; row < map.height; row++)
+      for (int column = 0; column < map.width; column++) result[row][column] = map.getObjectId(row, column);
+    return result;
+  }
+
+  // rolling heights with cliffs, long runs of empty cells and clusters of objects, some running across rows; sizes
+  // that are not a multiple of a chunk, and a single cell first
+  private static List<ArrayMapStorage> maps() {
+    Random random = new Random(1);
+    List<ArrayMapStorage> result = new ArrayList<>();
+    for (int round = 0; round < ROUNDS; round++) {
+      int width = round == 0 ? 1 : 1 + random.nextInt(300), height = round == 0 ? 1 : 1 + random.nextInt(300);
+      ArrayMapStorage storage = new ArrayMapStorage(width, height);
+      int[] values = new int[width + 1];
+      int base = random.nextInt(20) - 10;
+      for (int row = 0; row <= height; row++) {
+        for (int column = 0; column <= width; column++) {
+          values[column] = base + (int) (8 * Math.sin(row * 0.05) + 8 * Math.cos(column * 0.07));
+          if (random.nextInt(50) == 0) values[column] += random.nextInt(40) - 20;
+        }
+        storage.setHeights(row, values);
+      }
+      int object = 0;
+      for (int row = 0; row < height; row++) {
+        for (int column = 0; column < width; column++) {
+          if (random.nextInt(20) == 0) object = random.nextInt(3) == 0 ? random.nextInt(3) : 0;
+          values[column] = object;
+        }
+        storage.setObjects(row, values);
+      }
+      result.add(storage);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,199 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Paths of the hierarchical search against a plain A* over all cells, on maps of a few clusters with hills and
+// scattered objects.
+class PathFinderTest {
+  private static final int SIZE = GameMap.TILE_SIZE, MAX_SLOPE = 1;
+  private static final int STRAIGHT = 10, DIAGONAL = 14, CLIMB = 5;
+  private static final int[] DIRECTION_ROWS = { -1, 1, 0, 0, -1, -1, 1, 1 };
+  private static final int[] DIRECTION_COLUMNS = { 0, 0, -1, 1, -1, 1, -1, 1 };
+
+  private final ForkJoinPool pool = new ForkJoinPool(2);
+
+  @AfterEach
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  @Test
+  void pathsAreWalkableAndCloseToOptimal() {
+    Random random = new Random(3);
+    long total = 0, optimalTotal = 0;
+    for (int round = 0; round < 4; round++) {
+      // sizes that leave partial clusters at the right and bottom
+      GameMap map = randomMap(random, 2 * SIZE + random.nextInt(2 * SIZE), 2 * SIZE + random.nextInt(2 * SIZE));
+      PathFinder finder = new PathFinder(map, MAX_SLOPE, pool);
+      for (int query = 0; query < 50; query++) {
+        int startRow = random.nextInt(map.height), startColumn = random.nextInt(map.width);
+        int goalRow = random.nextInt(map.height), goalColumn = random.nextInt(map.width);
+        int[] path = finder.findPath(startRow, startColumn, goalRow, goalColumn);
+        int optimal = shortest(map, startRow * map.width + startColumn, goalRow * map.width + goalColumn);
+        String name = startRow + "," + startColumn + " to " + goalRow + "," + goalColumn;
+        if (optimal < 0) {
+          assertNull(path, name + " cannot be reached");
+          continue;
+        }
+        assertNotNull(path, name + " can be reached");
+        assertEquals(startRow * map.width + startColumn, path[0], name);
+        assertEquals(goalRow * map.width + goalColumn, path[path.length - 1], name);
+        total += assertCloseToOptimal(map, path, optimal, name);
+        optimalTotal += optimal;
+      }
+    }
+    assertTrue(total <= optimalTotal * 21 / 20, "paths cost " + total + ", optimal " + optimalTotal);
+  }
+
+  // a wall through the whole cluster between start and goal, the only way around is through the cluster below
+  @Test
+  void leavesTheClusterWhenItIsSplit() {
+    GameMap map = new GameMap(3 * SIZE, 3 * SIZE, null);
+    for (int row = 0; row < SIZE; row++) map.setObject(row, SIZE / 2, 1);
+    PathFinder finder = new PathFinder(map, MAX_SLOPE, pool);
+    int[] path = finder.findPath(10, 10, 10, SIZE - 10);
+    assertNotNull(path);
+    assertCloseToOptimal(map, path, shortest(map, 10 * map.width + 10, 10 * map.width + SIZE - 10), "around the wall");
+    assertTrue(Arrays.stream(path).anyMatch(cell -> cell / map.width >= SIZE));
+  }
+
+  @Test
+  void enclosedGoalCannotBeReached() {
+    GameMap map = new GameMap(2 * SIZE, 2 * SIZE, null);
+    for (int i = -2; i <= 2; i++) {
+      map.setObject(SIZE - 2, SIZE + i, 1);
+      map.setObject(SIZE + 2, SIZE + i, 1);
+      map.setObject(SIZE + i, SIZE - 2, 1);
+      map.setObject(SIZE + i, SIZE + 2, 1);
+    }
+    PathFinder finder = new PathFinder(map, MAX_SLOPE, pool);
+    assertNull(finder.findPath(5, 5, SIZE, SIZE));
+    assertNotNull(finder.findPath(5, 5, SIZE - 3, SIZE));
+  }
+
+  @Test
+  void blockedPathIsRoutedAgainAfterUpdate() {
+    GameMap map = new GameMap(3 * SIZE, 3 * SIZE, null);
+    PathFinder finder = new PathFinder(map, MAX_SLOPE, pool);
+    int[] path = finder.findPath(10, 10, 2 * SIZE + 20, 2 * SIZE + 30);
+    assertNotNull(path);
+    assertSame(path, finder.findPath(10, 10, 2 * SIZE + 20, 2 * SIZE + 30), "paths are cached");
+
+    // a wall across the path in the middle cluster, with a gap far from it
+    int blocked = path[path.length / 2], row = blocked / map.width, column = blocked % map.width;
+    for (int c = Math.max(0, column - 20); c < Math.min(map.width, column + 20); c++) map.setObject(row, c, 1);
+    assertSame(path, finder.findPath(10, 10, 2 * SIZE + 20, 2 * SIZE + 30), "the cache is kept until update");
+
+    finder.update();
+    int[] routed = finder.findPath(10, 10, 2 * SIZE + 20, 2 * SIZE + 30);
+    assertNotNull(routed);
+    assertNotSame(path, routed);
+    assertTrue(Arrays.stream(routed).noneMatch(cell -> cell == blocked));
+    cost(map, routed);
+  }
+
+  @Test
+  void raisedTerrainIsRoutedAgainAfterUpdate() {
+    GameMap map = new GameMap(2 * SIZE, 2 * SIZE, null);
+    PathFinder finder = new PathFinder(map, MAX_SLOPE, pool);
+    int[] path = finder.findPath(5, 5, 5, 2 * SIZE - 5);
+    assertNotNull(path);
+
+    // a ridge across the straight line, climbing it costs more than the way around
+    for (int row = 0; row <= 20; row++) map.raise(row, SIZE, 12);
+    finder.update();
+    int[] routed = finder.findPath(5, 5, 5, 2 * SIZE - 5);
+    assertFalse(Arrays.equals(path, routed));
+    assertTrue(Arrays.stream(routed).anyMatch(cell -> cell / map.width > 20));
+    assertCloseToOptimal(map, routed, shortest(map, 5 * map.width + 5, 5 * map.width + 2 * SIZE - 5), "around the ridge");
+  }
+
+  // the search over clusters may miss the best path: short paths by the detour to a transition, long ones by a
+  // little more; returns the cost of the path
+  private static int assertCloseToOptimal(GameMap map, int[] path, int optimal, String name) {
+    int cost = cost(map, path);
+    assertTrue(cost <= optimal * 6 / 5 + 8 * STRAIGHT, name + " costs " + cost + ", optimal " + optimal);
+    return cost;
+  }
+
+  // rolling terrain with steps of one or two levels and about one cell in eight taken by an object
+  private static GameMap randomMap(Random random, int width, int height) {
+    ArrayMapStorage storage = new ArrayMapStorage(width, height);
+    int[] values = new int[width + 1];
+    double phase = random.nextDouble() * 10;
+    for (int row = 0; row <= height; row++) {
+      for (int column = 0; column <= width; column++)
+        values[column] = (int) Math.round(1.5 * Math.sin(row * 0.09 + phase) + 1.5 * Math.cos(column * 0.07));
+      storage.setHeights(row, values);
+    }
+    for (int row = 0; row < height; row++) {
+      for (int column = 0; column < width; column++) values[column] = random.nextInt(8) == 0 ? 1 : 0;
+      storage.setObjects(row, values);
+    }
+    return new GameMap(storage, null);
+  }
+
+  private static boolean walkable(GameMap map, int row, int column) {
+    if (row < 0 || row >= map.height || column < 0 || column >= map.width || map.getObjectId(row, column) != 0)
+      return false;
+    int h00 = map.height(row, column), h01 = map.height(row, column + 1);
+    int h10 = map.height(row + 1, column), h11 = map.height(row + 1, column + 1);
+    int low = Math.min(Math.min(h00, h01), Math.min(h10, h11)), high = Math.max(Math.max(h00, h01), Math.max(h10, h11));
+    return high - low <= MAX_SLOPE;
+  }
+
+  private static int level(GameMap map, int row, int column) {
+    return map.height(row, column) + map.height(row, column + 1) + map.height(row + 1, column) + map.height(row + 1, column + 1);
+  }
+
+  // cost of a step to one of the eight neighbours, -1 if the step is not allowed
+  private static int step(GameMap map, int from, int to) {
+    int row = from / map.width, column = from % map.width, r = to / map.width, c = to % map.width;
+    if (Math.abs(r - row) > 1 || Math.abs(c - column) > 1 || from == to || !walkable(map, r, c)) return -1;
+    boolean diagonal = r != row && c != column;
+    if (diagonal && (!walkable(map, row, c) || !walkable(map, r, column))) return -1;
+    return (diagonal ? DIAGONAL : STRAIGHT) + CLIMB * Math.abs(level(map, r, c) - level(map, row, column));
+  }
+
+  // fails on a step that is not a walkable move to a neighbour
+  private static int cost(GameMap map, int[] path) {
+    int result = 0;
+    assertTrue(walkable(map, path[0] / map.width, path[0] % map.width), "start is walkable");
+    for (int i = 1; i < path.length; i++) {
+      int cost = step(map, path[i - 1], path[i]);
+      assertTrue(cost >= 0, "step " + i + " from " + path[i - 1] + " to " + path[i]);
+      result += cost;
+    }
+    return result;
+  }
+
+  // Dijkstra over all cells, -1 if goal cannot be reached
+  private static int shortest(GameMap map, int start, int goal) {
+    if (!walkable(map, start / map.width, start % map.width) || !walkable(map, goal / map.width, goal % map.width))
+      return -1;
+    int[] g = new int[map.width * map.height];
+    Arrays.fill(g, Integer.MAX_VALUE);
+    PriorityQueue<long[]> open = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[0]));
+    g[start] = 0;
+    open.add(new long[] { 0, start });
+    while (!open.isEmpty()) {
+      long[] entry = open.poll();
+      int cell = (int) entry[1];
+      if (entry[0] > g[cell]) continue;
+      if (cell == goal) return g[cell];
+      for (int direction = 0; direction < 8; direction++) {
+        int r = cell / map.width + DIRECTION_ROWS[direction], c = cell % map.width + DIRECTION_COLUMNS[direction];
+        if (r < 0 || r >= map.height || c < 0 || c >= map.width) continue;
+        int next = r * map.width + c, cost = step(map, cell, next);
+        if (cost < 0 || g[cell] + cost >= g[next]) continue;
+        g[next] = g[cell] + cost;
+        open.add(new long[] { g[next], next });
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,155 @@
+package co.rngd.harvest.moon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Lines of sight on handcrafted heightmaps, and the counts of the players kept right over moves, removals and
+// terrain edits.
+class VisibilityTest {
+  private final ForkJoinPool pool = new ForkJoinPool(2);
+
+  @AfterEach
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  @Test
+  void raysStepTowardsTheCenter() {
+    for (int radius = 0; radius <= 24; radius++) {
+      Visibility.Rays rays = new Visibility.Rays(radius);
+      int disc = 0;
+      for (int r = -radius; r <= radius; r++)
+        for (int c = -radius; c <= radius; c++) if (r * r + c * c <= radius * radius) disc++;
+      assertEquals(disc, rays.rows.length, "cells of radius " + radius);
+      assertEquals(0, rays.rows[0]);
+      assertEquals(0, rays.columns[0]);
+      assertEquals(-1, rays.previous[0]);
+      Set<Integer> cells = new HashSet<>();
+      for (int i = 0; i < rays.rows.length; i++) {
+        assertTrue(cells.add(rays.rows[i] * 1000 + rays.columns[i]), "cell twice in radius " + radius);
+        if (i == 0) continue;
+        int before = rays.previous[i];
+        String cell = "radius " + radius + " cell " + rays.rows[i] + "," + rays.columns[i];
+        assertTrue(before >= 0 && before < i, cell);
+        assertEquals(steps(rays.rows[i], rays.columns[i]) - 1, steps(rays.rows[before], rays.columns[before]), cell);
+        assertTrue(Math.abs(rays.rows[i] - rays.rows[before]) <= 1 && Math.abs(rays.columns[i] - rays.columns[before]) <= 1, cell);
+      }
+    }
+  }
+
+  @Test
+  void flatGroundShowsTheDisc() {
+    GameMap map = new GameMap(60, 60, null);
+    Visibility visibility = new Visibility(map, 2, pool);
+    visibility.addUnit(0, 30, 30, 6);
+    visibility.update();
+    for (int row = 0; row < map.height; row++) {
+      for (int column = 0; column < map.width; column++) {
+        boolean inside = (row - 30) * (row - 30) + (column - 30) * (column - 30) <= 36;
+        assertEquals(inside, visibility.isVisible(0, row, column), row + "," + column);
+        assertEquals(inside, visibility.isExplored(0, row, column), row + "," + column);
+        assertFalse(visibility.isVisible(1, row, column));
+      }
+    }
+    assertTrue(visibility.isAnyVisible(0, 36, 30, 40, 31));
+    assertFalse(visibility.isAnyVisible(0, 37, 0, 60, 60));
+    assertFalse(visibility.isAnyVisible(0, 0, 0, 24, 60));
+    assertTrue(visibility.isAnyVisible(0, -10, -10, 100, 100));
+    assertFalse(visibility.isAnyVisible(0, 30, 31, 31, 31));
+    assertFalse(visibility.isAnyVisible(1, 0, 0, 60, 60));
+  }
+
+  // a unit below a ridge sees up to the crest and nothing in the valley behind it
+  @Test
+  void ridgeHidesTheValleyBehindIt() {
+    ArrayMapStorage storage = new ArrayMapStorage(60, 60);
+    for (int row = 0; row <= 60; row++) storage.setHeight(row, 35, 6);
+    GameMap map = new GameMap(storage, null);
+    Visibility visibility = new Visibility(map, 1, pool);
+    visibility.addUnit(0, 30, 28, 20);
+    visibility.update();
+    assertTrue(visibility.isVisible(0, 30, 33));
+    assertTrue(visibility.isVisible(0, 30, 34), "the slope up to the crest");
+    for (int column = 37; column < 48; column++) assertFalse(visibility.isVisible(0, 30, column), "behind at " + column);
+    assertFalse(visibility.isAnyVisible(0, 20, 37, 41, 60));
+
+    // from on top of the ridge the valley is in sight
+    int top = visibility.addUnit(0, 30, 35, 10);
+    visibility.update();
+    assertTrue(visibility.isVisible(0, 30, 40));
+    visibility.removeUnit(top);
+    assertFalse(visibility.isVisible(0, 30, 40));
+    assertTrue(visibility.isExplored(0, 30, 40));
+  }
+
+  @Test
+  void loweredRidgeUncoversTheValley() {
+    ArrayMapStorage storage = new ArrayMapStorage(60, 60);
+    for (int row = 0; row <= 60; row++) storage.setHeight(row, 35, 6);
+    GameMap map = new GameMap(storage, null);
+    Visibility visibility = new Visibility(map, 1, pool);
+    visibility.addUnit(0, 30, 28, 20);
+    visibility.update();
+    assertFalse(visibility.isVisible(0, 30, 40));
+    int version = visibility.getVersion(0);
+
+    for (int row = 0; row <= 60; row++) map.lower(row, 35, 0);
+    visibility.update();
+    assertTrue(visibility.isVisible(0, 30, 40));
+    assertNotEquals(version, visibility.getVersion(0));
+  }
+
+  // after every step the bitmaps are those of a visibility made from scratch with the same units
+  @Test
+  void countsFollowMovesRemovalsAndEdits() {
+    Random random = new Random(4);
+    ArrayMapStorage storage = new ArrayMapStorage(120, 90);
+    for (int row = 0; row <= 90; row++)
+      for (int column = 0; column <= 120; column++)
+        storage.setHeight(row, column, (int) Math.round(3 * Math.sin(row * 0.2) * Math.cos(column * 0.15)));
+    GameMap map = new GameMap(storage, null);
+    Visibility visibility = new Visibility(map, 2, pool);
+    Map<Integer, int[]> units = new HashMap<>();
+    long[][] explored = new long[2][visibility.getExplored(0).length];
+    for (int step = 0; step < 200; step++) {
+      int operation = random.nextInt(10);
+      List<Integer> ids = new ArrayList<>(units.keySet());
+      Collections.sort(ids);
+      if (ids.isEmpty() || operation < 3) {
+        int[] unit = { random.nextInt(2), random.nextInt(90), random.nextInt(120), 1 + random.nextInt(15) };
+        units.put(visibility.addUnit(unit[0], unit[1], unit[2], unit[3]), unit);
+      }
+      else if (operation < 7) {
+        int id = ids.get(random.nextInt(ids.size()));
+        int[] unit = units.get(id);
+        unit[1] = Math.max(0, Math.min(89, unit[1] + random.nextInt(7) - 3));
+        unit[2] = Math.max(0, Math.min(119, unit[2] + random.nextInt(7) - 3));
+        visibility.moveUnit(id, unit[1], unit[2]);
+      }
+      else if (operation < 9) {
+        int id = ids.get(random.nextInt(ids.size()));
+        visibility.removeUnit(id);
+        units.remove(id);
+      }
+      else if (random.nextBoolean()) map.raise(random.nextInt(91), random.nextInt(121), 4 + random.nextInt(3));
+      else map.lower(random.nextInt(91), random.nextInt(121), -4);
+      visibility.update();
+
+      Visibility expected = new Visibility(map, 2, pool);
+      for (int[] unit : units.values()) expected.addUnit(unit[0], unit[1], unit[2], unit[3]);
+      expected.update();
+      for (int player = 0; player < 2; player++) {
+        assertArrayEquals(expected.getVisible(player), visibility.getVisible(player), "visible, step " + step);
+        for (int word = 0; word < explored[player].length; word++) explored[player][word] |= visibility.getVisible(player)[word];
+        assertArrayEquals(explored[player], visibility.getExplored(player), "explored, step " + step);
+      }
+    }
+  }
+
+  private static int steps(int r, int c) {
+    return Math.max(Math.abs(r), Math.abs(c));
+  }
+}